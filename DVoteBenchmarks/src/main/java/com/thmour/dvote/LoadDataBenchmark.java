@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2016 theofilos
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.thmour.dvote;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Replay of the vote log into a fresh worker, the time a restarted worker
+ * needs before it answers /alive.
+ *
+ * @author theofilos
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgs = {"-Xmx2g"})
+public class LoadDataBenchmark {
+
+    private static final int PARTITIONS = 256;
+    private static final int CANDIDATES = 10;
+
+    @Param({"1000000", "4000000"})
+    public int records;
+
+    private Path dir;
+    private Server server;
+
+    @Setup(Level.Trial)
+    public void writeData() throws Exception {
+        dir = Files.createTempDirectory("dvote-load");
+        Workers.writeData(dir, records, PARTITIONS, CANDIDATES, System.currentTimeMillis());
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteData() throws Exception {
+        Workers.delete(dir);
+    }
+
+    @Setup(Level.Invocation)
+    public void setup() throws Exception {
+        server = Workers.create(dir, PARTITIONS, CANDIDATES);
+    }
+
+    @TearDown(Level.Invocation)
+    public void tearDown() {
+        server.stop();
+    }
+
+    @Benchmark
+    public boolean loadData() {
+        return server.loadData();
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2016 theofilos
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.thmour.dvote;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * The range extraction of /resolve over one large fragment, for the whole
+ * fragment (a resize) and for its latest 1% (a short outage).
+ *
+ * @author theofilos
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = {"-Xmx2g"})
+public class ResolveBenchmark {
+
+    private static final long FIRST = 1_000_000_000L;
+
+    @Param({"100000", "1000000"})
+    public int records;
+
+    @Param({"all", "tail"})
+    public String window;
+
+    private Path dir;
+    private Server server;
+    private long start;
+    private long end;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        dir = Files.createTempDirectory("dvote-resolve");
+        // a single fragment holds every vote
+        Workers.writeData(dir, records, 1, 10, FIRST);
+        server = Workers.start(dir, 1, 10);
+        start = "all".equals(window) ? Long.MIN_VALUE : FIRST + records - records / 100;
+        end = Long.MAX_VALUE;
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        server.stop();
+        Workers.delete(dir);
+    }
+
+    private long extract(Blackhole bh) {
+        return server.streamRange((short) 0, start, end, (chunk, length) -> {
+            bh.consume(chunk);
+            return true;
+        });
+    }
+
+    @Benchmark
+    public long range(Blackhole bh) {
+        return extract(bh);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public long rangeContended(Blackhole bh) {
+        return extract(bh);
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2016 theofilos
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.thmour.dvote;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * The master's per-vote work before the fan-out: hashing the voter to its
+ * fragment, encoding the store record and looking up the replicas.
+ *
+ * @author theofilos
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RoutingBenchmark {
+
+    private static final String[] WORKERS = new String[16];
+
+    static {
+        for (int wid = 0; wid < WORKERS.length; wid++) {
+            WORKERS[wid] = "worker" + wid + ":9090";
+        }
+    }
+
+    private final HashRing ring = new HashRing(WORKERS, 64, 256, 3);
+    private final byte[] record = new byte[Protocol.RECORD_LEN];
+    private int voter = 0;
+
+    private void encode(Blackhole bh) {
+        int partition = ring.partition(voter);
+        Protocol.putRecord(record, 0, (short) partition, voter, (short) (voter & 7),
+                System.currentTimeMillis());
+        voter++;
+        bh.consume(record);
+        bh.consume(ring.replicas(partition));
+    }
+
+    @Benchmark
+    public void route(Blackhole bh) {
+        encode(bh);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void routeParallel(Blackhole bh) {
+        encode(bh);
+    }
+
+    @Benchmark
+    public HashRing buildRing() {
+        return new HashRing(WORKERS, 64, 256, 3);
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2016 theofilos
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.thmour.dvote;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * The worker's /store path: the duplicate check on the vote map, the
+ * hand-off to the group-commit log writer and the counter updates,
+ * alone, under contention and next to /results readers.
+ *
+ * @author theofilos
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class WorkerStoreBenchmark {
+
+    private static final int PARTITIONS = 256;
+    private static final int CANDIDATES = 10;
+    private static final int DUPLICATE = -2;
+
+    private final AtomicInteger next_voter = new AtomicInteger();
+    private final HashRing ring = new HashRing(Workers.MEMBERS, 64, PARTITIONS, 1);
+    private Path dir;
+    private Server server;
+    private byte[] duplicate;
+    private byte[] results_request;
+
+    @Setup(Level.Iteration)
+    public void setup() throws Exception {
+        dir = Files.createTempDirectory("dvote-store");
+        server = Workers.start(dir, PARTITIONS, CANDIDATES);
+        next_voter.set(0);
+        duplicate = record(DUPLICATE);
+        CountDownLatch stored = new CountDownLatch(1);
+        server.store(duplicate.clone(), (status, body) -> stored.countDown());
+        stored.await();
+
+        // every fragment with an unknown version, answered with its counters
+        ByteBuffer request = ByteBuffer.allocate(Short.BYTES + Integer.BYTES + Long.BYTES
+                + PARTITIONS * (Short.BYTES + Long.BYTES));
+        request.putShort((short) PARTITIONS).putInt(0).putLong(0);
+        for (int data_id = 0; data_id < PARTITIONS; data_id++) {
+            request.putShort((short) data_id).putLong(-1);
+        }
+        results_request = request.array();
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() throws Exception {
+        server.stop();
+        Workers.delete(dir);
+    }
+
+    private byte[] record(int voter) {
+        byte[] record = new byte[Protocol.RECORD_LEN];
+        Protocol.putRecord(record, 0, (short) ring.partition(voter), voter,
+                (short) Math.floorMod(voter, CANDIDATES), System.currentTimeMillis());
+        return record;
+    }
+
+    private void storeNext(Blackhole bh) {
+        server.store(record(next_voter.getAndIncrement()), (status, body) -> bh.consume(status));
+    }
+
+    @Benchmark
+    public void store(Blackhole bh) {
+        storeNext(bh);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void storeContended(Blackhole bh) {
+        storeNext(bh);
+    }
+
+    @Benchmark
+    public void storeDuplicate(Blackhole bh) {
+        server.store(duplicate, (status, body) -> bh.consume(status));
+    }
+
+    @Benchmark
+    public void results(Blackhole bh) throws Exception {
+        server.results(results_request, (status, body) -> bh.consume(body));
+    }
+
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(3)
+    public void mixedStore(Blackhole bh) {
+        storeNext(bh);
+    }
+
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(1)
+    public void mixedResults(Blackhole bh) throws Exception {
+        server.results(results_request, (status, body) -> bh.consume(body));
+    }
+}
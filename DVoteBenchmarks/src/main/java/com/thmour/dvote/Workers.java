@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2016 theofilos
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.thmour.dvote;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+/**
+ * Builds in-process workers over temporary data directories for the
+ * benchmarks. The workers listen on an ephemeral port and never join a
+ * cluster.
+ *
+ * @author theofilos
+ */
+final class Workers {
+
+    static final String[] MEMBERS = {"localhost"};
+    static final int SEGMENT_SIZE = 64 << 20;
+
+    private Workers() {
+    }
+
+    static Server create(Path dir, int partitions, int candidates)
+            throws IOException, URISyntaxException {
+        return new Server(dir.toString(), MEMBERS, candidates, partitions, 1, 64, 0, 0,
+                new WorkerClient(4, 1000, 1000, 30000),
+                new AdmissionControl(128, 1024, 1024, false, 1), false, 0, false,
+                4096, 0, true, SEGMENT_SIZE, 0);
+    }
+
+    static Server start(Path dir, int partitions, int candidates)
+            throws IOException, URISyntaxException {
+        Server server = create(dir, partitions, candidates);
+        server.start();
+        return server;
+    }
+
+    /**
+     * Writes a log of {@code records} votes in blocks of 4096, voter i
+     * voting at {@code timestamp + i} in the fragment the ring places it in.
+     */
+    static void writeData(Path dir, int records, int partitions, int candidates,
+            long timestamp) throws IOException {
+        HashRing ring = new HashRing(MEMBERS, 64, partitions, 1);
+        SegmentLog log = new SegmentLog(dir.resolve("votes"), SEGMENT_SIZE);
+        byte[] block = new byte[4096 * Protocol.RECORD_LEN];
+        int filled = 0;
+        for (int voter = 0; voter < records; voter++) {
+            Protocol.putRecord(block, filled, (short) ring.partition(voter), voter,
+                    (short) (voter % candidates), timestamp + voter);
+            filled += Protocol.RECORD_LEN;
+            if (filled == block.length || voter == records - 1) {
+                log.append(block, 0, filled);
+                filled = 0;
+            }
+        }
+        log.commit(true);
+        log.close();
+    }
+
+    static void delete(Path dir) throws IOException {
+        try (Stream<Path> files = Files.walk(dir)) {
+            files.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2016 theofilos
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.thmour.dvote;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Closed-loop benchmark of /vote: every concurrency level keeps that many
+ * voters in flight until its votes are sent, then reports throughput and
+ * latency percentiles. Run it once against a master with
+ * {@code executor=pool} and once with {@code executor=virtual} to compare
+ * the two.
+ *
+ * @author theofilos
+ */
+class Bench {
+
+    private final String host;
+    private final int candidates;
+    private final int votes;
+    private final HttpClient client = HttpClient.newBuilder()
+            .connectTimeout(Duration.ofSeconds(10)).build();
+    private final Random random = new Random();
+    private int next_voter = new Random().nextInt(Integer.MAX_VALUE / 2);
+
+    Bench(String host, int candidates, int votes) {
+        this.host = host;
+        this.candidates = candidates;
+        this.votes = votes;
+    }
+
+    void run(int concurrency) throws InterruptedException {
+        int total = Math.max(votes, concurrency);
+        long[] latencies = new long[total];
+        Map<Integer, AtomicInteger> codes = new ConcurrentHashMap<>();
+        Semaphore in_flight = new Semaphore(concurrency);
+        CountDownLatch done = new CountDownLatch(total);
+        URI uri = URI.create("http://" + host + "/vote");
+
+        long t1 = System.nanoTime();
+        for (int i = 0; i < total; i++) {
+            in_flight.acquire();
+            int vote = i;
+            HttpRequest request = HttpRequest.newBuilder(uri)
+                    .timeout(Duration.ofSeconds(30))
+                    .POST(HttpRequest.BodyPublishers.ofString("voter=" + next_voter++
+                            + "&candidate=" + random.nextInt(candidates)))
+                    .build();
+            long start = System.nanoTime();
+            client.sendAsync(request, HttpResponse.BodyHandlers.discarding())
+                    .whenComplete((res, ex) -> {
+                        latencies[vote] = System.nanoTime() - start;
+                        codes.computeIfAbsent(ex == null ? res.statusCode() : -1,
+                                k -> new AtomicInteger()).incrementAndGet();
+                        in_flight.release();
+                        done.countDown();
+                    });
+        }
+        done.await();
+        long elapsed = System.nanoTime() - t1;
+
+        Arrays.sort(latencies);
+        Map<Integer, Integer> counts = new TreeMap<>();
+        codes.forEach((code, count) -> counts.put(code, count.get()));
+        System.out.printf("concurrency=%d votes=%d throughput=%.0f/s p50=%.2fms p99=%.2fms"
+                + " p99.9=%.2fms max=%.2fms codes=%s%n",
+                concurrency, total, total * 1e9 / elapsed,
+                percentile(latencies, 0.50), percentile(latencies, 0.99),
+                percentile(latencies, 0.999), latencies[total - 1] / 1e6, counts);
+    }
+
+    private static double percentile(long[] sorted, double p) {
+        return sorted[(int) Math.min(sorted.length - 1, Math.ceil(p * sorted.length) - 1)] / 1e6;
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2016 theofilos
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.thmour.dvote;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Log-linear histogram of latencies in microseconds. Every power of two
+ * is split in 64 buckets, so percentiles are within 1.6% of the recorded
+ * values without keeping the samples. Safe to record from many threads.
+ *
+ * @author theofilos
+ */
+class LatencyHistogram {
+
+    private static final int SUB_BITS = 6;
+    private static final int SUB = 1 << SUB_BITS;
+    private static final int MAX_SHIFT = 40;
+
+    private final AtomicLongArray counts = new AtomicLongArray(2 * SUB + MAX_SHIFT * SUB);
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    void record(long nanos) {
+        long micros = Math.max(nanos / 1000, 0);
+        counts.incrementAndGet(index(micros));
+        total.incrementAndGet();
+        max.accumulateAndGet(micros, Math::max);
+    }
+
+    long count() {
+        return total.get();
+    }
+
+    /**
+     * The latency at a percentile in milliseconds, 0 when empty.
+     */
+    double percentile(double p) {
+        long n = total.get();
+        if (n == 0) {
+            return 0;
+        }
+        long target = Math.max((long) Math.ceil(p * n), 1);
+        long seen = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            seen += counts.get(i);
+            if (seen >= target) {
+                return Math.min(highest(i), max.get()) / 1000.0;
+            }
+        }
+        return max.get() / 1000.0;
+    }
+
+    double max() {
+        return max.get() / 1000.0;
+    }
+
+    private static int index(long micros) {
+        if (micros < 2 * SUB) {
+            return (int) micros;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(micros) - SUB_BITS;
+        if (shift > MAX_SHIFT) {
+            return 2 * SUB + (MAX_SHIFT - 1) * SUB + SUB - 1;
+        }
+        return 2 * SUB + (shift - 1) * SUB + (int) ((micros >> shift) - SUB);
+    }
+
+    /**
+     * The highest value that falls in a bucket.
+     */
+    private static long highest(int index) {
+        if (index < 2 * SUB) {
+            return index;
+        }
+        int shift = (index - 2 * SUB) / SUB + 1;
+        long sub = (index - 2 * SUB) % SUB + SUB;
+        return ((sub + 1) << shift) - 1;
+    }
+}
@@ -0,0 +1,226 @@
+/*
+ * Copyright (C) 2016 theofilos
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.thmour.dvote;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Open-loop load generator for /vote. Votes are scheduled at a fixed
+ * rate whatever the response times, and their latency is measured from
+ * the time they were due, not from the time they were sent, so a stalled
+ * master shows in the percentiles instead of slowing the load down
+ * (coordinated omission). At most {@code concurrency} votes are in flight,
+ * a vote waiting for a free slot keeps its due time. The optional results
+ * poller asks /results at a fixed interval next to the vote load.
+ *
+ * @author theofilos
+ */
+class LoadGenerator {
+
+    private final String host;
+    private final int candidates;
+    private final int rate;
+    private final int concurrency;
+    private final long warmup;
+    private final long duration;
+    private final int results_interval;
+    private final VoterIds voter_ids;
+    private final Random random;
+    private final HttpClient client = HttpClient.newBuilder()
+            .connectTimeout(Duration.ofSeconds(10)).build();
+
+    private final LatencyHistogram corrected = new LatencyHistogram();
+    private final LatencyHistogram service = new LatencyHistogram();
+    private final LatencyHistogram results = new LatencyHistogram();
+    private final Map<Integer, AtomicInteger> codes = new ConcurrentHashMap<>();
+    private final Map<Integer, AtomicInteger> results_codes = new ConcurrentHashMap<>();
+    private final AtomicLong completed = new AtomicLong();
+
+    /**
+     * Reads the settings from {@code key=value} arguments, see the README
+     * for the keys and their defaults.
+     */
+    LoadGenerator(String host, Map<String, String> options) {
+        this.host = host;
+        this.candidates = Integer.parseInt(options.getOrDefault("candidates", "3"));
+        this.rate = Integer.parseInt(options.getOrDefault("rate", "1000"));
+        this.concurrency = Integer.parseInt(options.getOrDefault("concurrency", "256"));
+        this.warmup = TimeUnit.SECONDS.toNanos(Long.parseLong(options.getOrDefault("warmup", "5")));
+        this.duration = TimeUnit.SECONDS.toNanos(Long.parseLong(options.getOrDefault("duration", "30")));
+        this.results_interval = Integer.parseInt(options.getOrDefault("results", "0"));
+        long seed = options.containsKey("seed") ? Long.parseLong(options.get("seed"))
+                : System.nanoTime();
+        this.random = new Random(seed);
+        this.voter_ids = new VoterIds(options.getOrDefault("distribution", "uniform"),
+                Integer.parseInt(options.getOrDefault("voters", "1000000")),
+                Double.parseDouble(options.getOrDefault("zipf", "1.0")),
+                Double.parseDouble(options.getOrDefault("duplicates", "0")), seed);
+        if (rate <= 0 || concurrency <= 0) {
+            throw new IllegalArgumentException("rate and concurrency must be positive");
+        }
+    }
+
+    void run() throws InterruptedException {
+        URI uri = URI.create("http://" + host + "/vote");
+        Semaphore in_flight = new Semaphore(concurrency);
+        Set<CompletableFuture<HttpResponse<Void>>> pending = ConcurrentHashMap.newKeySet();
+        double period = 1e9 / rate;
+        long t0 = System.nanoTime();
+        long measure_from = t0 + warmup;
+        long end = measure_from + duration;
+
+        Thread poller = null;
+        if (results_interval > 0) {
+            poller = new Thread(() -> pollResults(measure_from, end), "results-poller");
+            poller.setDaemon(true);
+            poller.start();
+        }
+
+        long sent = 0;
+        long late = 0;
+        for (long i = 0;; i++) {
+            long due = t0 + (long) (i * period);
+            if (due >= end) {
+                break;
+            }
+            long wait = due - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+            } else if (wait < -1_000_000) {
+                late++;
+            }
+            in_flight.acquire();
+            boolean measured = due >= measure_from;
+            HttpRequest request = HttpRequest.newBuilder(uri)
+                    .timeout(Duration.ofSeconds(30))
+                    .POST(HttpRequest.BodyPublishers.ofString("voter=" + voter_ids.next()
+                            + "&candidate=" + random.nextInt(candidates)))
+                    .build();
+            long start = System.nanoTime();
+            CompletableFuture<HttpResponse<Void>> vote = client.sendAsync(request,
+                    HttpResponse.BodyHandlers.discarding());
+            pending.add(vote);
+            vote.whenComplete((res, ex) -> {
+                long now = System.nanoTime();
+                if (measured) {
+                    corrected.record(now - due);
+                    service.record(now - start);
+                    codes.computeIfAbsent(ex == null ? res.statusCode() : -1,
+                            k -> new AtomicInteger()).incrementAndGet();
+                    completed.incrementAndGet();
+                }
+                pending.remove(vote);
+                in_flight.release();
+            });
+            sent++;
+        }
+        long stopped = System.nanoTime();
+        // the votes still in flight belong to the run, wait for them
+        int timed_out = 0;
+        if (!in_flight.tryAcquire(concurrency, 60, TimeUnit.SECONDS)) {
+            // count the votes that never got an answer as failed, once
+            for (CompletableFuture<HttpResponse<Void>> vote : pending) {
+                if (vote.completeExceptionally(new TimeoutException())) {
+                    timed_out++;
+                }
+            }
+        }
+        if (poller != null) {
+            poller.interrupt();
+        }
+
+        double seconds = duration / 1e9;
+        System.out.printf("rate=%d/s concurrency=%d duration=%.0fs sent=%d"
+                + " throughput=%.0f/s late=%d%n", rate, concurrency, seconds, sent,
+                completed.get() / seconds, late);
+        print("latency", corrected, codes);
+        print("service", service, null);
+        if (poller != null) {
+            print("results", results, results_codes);
+        }
+        if (timed_out > 0) {
+            System.out.println("warning: " + timed_out + " votes got no response in 60s,"
+                    + " counted as code -1");
+        }
+        if (stopped - end > TimeUnit.SECONDS.toNanos(1)) {
+            System.out.println("warning: the generator could not keep the rate,"
+                    + " raise concurrency or lower the rate");
+        }
+    }
+
+    /**
+     * Asks /results every {@code results_interval} milliseconds, measured
+     * from the due time of every poll like the votes.
+     */
+    private void pollResults(long measure_from, long end) {
+        URI uri = URI.create("http://" + host + "/results");
+        HttpRequest request = HttpRequest.newBuilder(uri)
+                .timeout(Duration.ofSeconds(30)).GET().build();
+        long interval = TimeUnit.MILLISECONDS.toNanos(results_interval);
+        long due = System.nanoTime();
+        while (due < end && !Thread.currentThread().isInterrupted()) {
+            long wait = due - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+            }
+            int code;
+            try {
+                code = client.send(request, HttpResponse.BodyHandlers.discarding()).statusCode();
+            } catch (InterruptedException ex) {
+                return;
+            } catch (Exception ex) {
+                code = -1;
+            }
+            if (due >= measure_from) {
+                results.record(System.nanoTime() - due);
+                results_codes.computeIfAbsent(code, k -> new AtomicInteger()).incrementAndGet();
+            }
+            due += interval;
+        }
+    }
+
+    private static void print(String name, LatencyHistogram histogram,
+            Map<Integer, AtomicInteger> codes) {
+        StringBuilder sb = new StringBuilder(String.format("%-8s count=%d p50=%.2fms p90=%.2fms"
+                + " p99=%.2fms p99.9=%.2fms p99.99=%.2fms max=%.2fms", name, histogram.count(),
+                histogram.percentile(0.50), histogram.percentile(0.90),
+                histogram.percentile(0.99), histogram.percentile(0.999),
+                histogram.percentile(0.9999), histogram.max()));
+        if (codes != null) {
+            Map<Integer, Integer> counts = new TreeMap<>();
+            codes.forEach((code, count) -> counts.put(code, count.get()));
+            sb.append(" codes=").append(counts);
+        }
+        System.out.println(sb);
+    }
+}
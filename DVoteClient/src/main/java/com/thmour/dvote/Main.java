@@ -21,6 +21,7 @@ import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.net.HttpURLConnection;
 import java.net.URL;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Random;
@@ -77,10 +78,24 @@ public class Main {
         return null;
     }
 
-    public static void main(String[] args) {
+    public static void main(String[] args) throws InterruptedException {
         Map<Integer, Integer> codeMap = new HashMap<>();
         Random r = new Random();
-        if (args.length == 3) {
+        if (args.length >= 4 && "bench".equals(args[0])) {
+            Bench bench = new Bench(args[1], Integer.valueOf(args[2]), Integer.valueOf(args[3]));
+            String[] levels = args.length > 4 ? Arrays.copyOfRange(args, 4, args.length)
+                    : new String[]{"1000", "10000", "50000"};
+            for (String level : levels) {
+                bench.run(Integer.valueOf(level));
+            }
+        } else if (args.length >= 2 && "load".equals(args[0])) {
+            Map<String, String> options = new HashMap<>();
+            for (int i = 2; i < args.length; i++) {
+                String[] option = args[i].split("=", 2);
+                options.put(option[0], option.length == 2 ? option[1] : "");
+            }
+            new LoadGenerator(args[1], options).run();
+        } else if (args.length == 3) {
             String host = args[0];
             int requests = Integer.valueOf(args[1]);
             int candidates = Integer.valueOf(args[2]);
@@ -95,6 +110,10 @@ public class Main {
             System.out.println(RESULTS("http://"+host+"/results"));
         } else {
             System.err.println("Invalid arguments: <host:port> <#requests> <#candidates>");
+            System.err.println("    or: bench <host:port> <#candidates> <#votes> [concurrency...]");
+            System.err.println("    or: load <host:port> [rate=] [concurrency=] [warmup=] [duration=]"
+                    + " [candidates=] [distribution=uniform|sequential|zipf] [voters=] [zipf=]"
+                    + " [duplicates=] [results=] [seed=]");
         }
     }
 }
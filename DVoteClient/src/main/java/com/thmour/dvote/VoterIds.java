@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2016 theofilos
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.thmour.dvote;
+
+import java.util.Random;
+
+/**
+ * Voter IDs for the load generator: uniform or Zipf over a space of
+ * {@code voters} IDs, or sequential, with a share of repeats of voters that
+ * already voted. Zipf makes a few voters very popular, as retrying clients
+ * and scripted double voting do. Not thread-safe.
+ *
+ * @author theofilos
+ */
+class VoterIds {
+
+    private static final int RECENT = 4096;
+
+    private final String distribution;
+    private final int voters;
+    private final double duplicates;
+    private final int base;
+    private final Random random;
+    private final int[] recent = new int[RECENT];
+    private int recorded = 0;
+    private int next = 0;
+
+    // rejection-inversion sampling of Zipf, Hörmann and Derflinger 1996
+    private final double exponent;
+    private final double h_integral_x1;
+    private final double h_integral_n;
+    private final double s;
+
+    /**
+     * @param distribution uniform, sequential or zipf
+     * @param voters size of the voter ID space
+     * @param exponent the Zipf exponent
+     * @param duplicates share of IDs that repeat a recent voter
+     */
+    VoterIds(String distribution, int voters, double exponent, double duplicates, long seed) {
+        if (!"uniform".equals(distribution) && !"sequential".equals(distribution)
+                && !"zipf".equals(distribution)) {
+            throw new IllegalArgumentException("Unknown distribution " + distribution);
+        }
+        this.distribution = distribution;
+        this.voters = voters;
+        this.duplicates = duplicates;
+        this.random = new Random(seed);
+        // a fresh range of IDs per run, so runs do not collide
+        this.base = random.nextInt(Integer.MAX_VALUE / 2);
+        this.exponent = exponent;
+        this.h_integral_x1 = hIntegral(1.5) - 1;
+        this.h_integral_n = hIntegral(voters + 0.5);
+        this.s = 2 - hIntegralInverse(hIntegral(2.5) - h(2));
+    }
+
+    int next() {
+        if (recorded > 0 && duplicates > 0 && random.nextDouble() < duplicates) {
+            return recent[random.nextInt(Math.min(recorded, RECENT))];
+        }
+        int offset;
+        switch (distribution) {
+            case "sequential":
+                offset = next++ % voters;
+                break;
+            case "zipf":
+                offset = (int) zipf() - 1;
+                break;
+            default:
+                offset = random.nextInt(voters);
+                break;
+        }
+        int voter = (base + offset) & Integer.MAX_VALUE;
+        recent[recorded++ % RECENT] = voter;
+        if (recorded == 2 * RECENT) {
+            recorded = RECENT;
+        }
+        return voter;
+    }
+
+    private long zipf() {
+        while (true) {
+            double u = h_integral_n + random.nextDouble() * (h_integral_x1 - h_integral_n);
+            double x = hIntegralInverse(u);
+            long k = Math.max(1, Math.min(voters, (long) (x + 0.5)));
+            if (k - x <= s || u >= hIntegral(k + 0.5) - h(k)) {
+                return k;
+            }
+        }
+    }
+
+    private double h(double x) {
+        return Math.exp(-exponent * Math.log(x));
+    }
+
+    private double hIntegral(double x) {
+        double log_x = Math.log(x);
+        return helper2((1 - exponent) * log_x) * log_x;
+    }
+
+    private double hIntegralInverse(double x) {
+        double t = Math.max(x * (1 - exponent), -1);
+        return Math.exp(helper1(t) * x);
+    }
+
+    private static double helper1(double x) {
+        return Math.abs(x) > 1e-8 ? Math.log1p(x) / x : 1 - x * (0.5 - x * (1 / 3.0 - 0.25 * x));
+    }
+
+    private static double helper2(double x) {
+        return Math.abs(x) > 1e-8 ? Math.expm1(x) / x : 1 + x * 0.5 * (1 + x / 3 * (1 + 0.25 * x));
+    }
+}
@@ -0,0 +1,250 @@
+/*
+ * Copyright (C) 2016 theofilos
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.thmour.dvote;
+
+import com.sun.net.httpserver.Filter;
+import com.sun.net.httpserver.HttpExchange;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Bounded admission for the http servers. Requests wait in a queue of
+ * fixed depth for the handler threads, and a request that finds the queue
+ * full is answered with 503 on the dispatcher thread, except on reserved
+ * contexts such as /alive that run there instead. The ingest contexts also
+ * share a concurrency limit over the requests in flight, which, when
+ * adaptive, follows the gradient between the long-term and the recent
+ * response times: it shrinks while response times rise, as requests start
+ * queueing somewhere, and grows back while they are steady.
+ *
+ * @author theofilos
+ */
+public class AdmissionControl {
+
+    private static final byte[] OVERLOADED = "Server overloaded, try again later"
+            .getBytes(StandardCharsets.US_ASCII);
+    private static final ThreadLocal<Boolean> SHEDDING = new ThreadLocal<>();
+
+    private final int min_limit;
+    private final int max_limit;
+    private final int queue_depth;
+    private final boolean adaptive;
+    private final int retry_after;
+    private final AtomicInteger inflight = new AtomicInteger();
+    private volatile int limit;
+    private double estimate;
+    private double short_rtt = 0;
+    private double long_rtt = 0;
+
+    /**
+     * @param min_limit the lowest the adaptive limit may go
+     * @param max_limit the concurrency limit, the starting point when
+     * adaptive
+     * @param queue_depth requests that may wait for a handler thread
+     * @param adaptive follow the response times
+     * @param retry_after seconds sent in Retry-After
+     */
+    public AdmissionControl(int min_limit, int max_limit, int queue_depth,
+            boolean adaptive, int retry_after) {
+        this.min_limit = Math.min(min_limit, max_limit);
+        this.max_limit = max_limit;
+        this.queue_depth = queue_depth;
+        this.adaptive = adaptive;
+        this.retry_after = retry_after;
+        this.limit = max_limit;
+        this.estimate = max_limit;
+    }
+
+    /**
+     * The handler executor of an http server. When its queue is full the
+     * request runs on the dispatcher thread in shedding mode, where the
+     * filters answer 503 right away. On virtual threads every request gets
+     * its own thread, and requests beyond {@code threads} plus the queue
+     * depth are shed the same way.
+     */
+    public Executor executor(int threads, boolean virtual) {
+        if (virtual) {
+            ExecutorService tasks = Threads.cached(true);
+            AtomicInteger running = new AtomicInteger();
+            int capacity = threads + queue_depth;
+            return task -> {
+                if (running.incrementAndGet() > capacity) {
+                    running.decrementAndGet();
+                    shed(task);
+                    return;
+                }
+                tasks.execute(() -> {
+                    try {
+                        task.run();
+                    } finally {
+                        running.decrementAndGet();
+                    }
+                });
+            };
+        }
+        return new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queue_depth), (task, pool) -> {
+                    if (!pool.isShutdown()) {
+                        shed(task);
+                    }
+                });
+    }
+
+    private static void shed(Runnable task) {
+        SHEDDING.set(Boolean.TRUE);
+        try {
+            task.run();
+        } finally {
+            SHEDDING.remove();
+        }
+    }
+
+    /**
+     * Filter of the ingest contexts, admits requests up to the concurrency
+     * limit until their response is closed.
+     */
+    public Filter limitFilter() {
+        return new Filter() {
+            @Override
+            public void doFilter(HttpExchange ht, Chain chain) throws IOException {
+                if (SHEDDING.get() != null || !tryAcquire()) {
+                    reject(ht);
+                    return;
+                }
+                long start = System.nanoTime();
+                AtomicBoolean released = new AtomicBoolean(false);
+                ht.setStreams(null, new FilterOutputStream(ht.getResponseBody()) {
+                    @Override
+                    public void write(byte[] b, int off, int len) throws IOException {
+                        out.write(b, off, len);
+                    }
+
+                    @Override
+                    public void close() throws IOException {
+                        try {
+                            super.close();
+                        } finally {
+                            if (released.compareAndSet(false, true)) {
+                                release(System.nanoTime() - start);
+                            }
+                        }
+                    }
+                });
+                try {
+                    chain.doFilter(ht);
+                } catch (IOException | RuntimeException ex) {
+                    if (released.compareAndSet(false, true)) {
+                        release(System.nanoTime() - start);
+                    }
+                    throw ex;
+                }
+            }
+
+            @Override
+            public String description() {
+                return "Concurrency limit";
+            }
+        };
+    }
+
+    /**
+     * Filter of every other context that is not reserved, only answers
+     * 503 when the handler queue is full.
+     */
+    public Filter overflowFilter() {
+        return new Filter() {
+            @Override
+            public void doFilter(HttpExchange ht, Chain chain) throws IOException {
+                if (SHEDDING.get() != null) {
+                    reject(ht);
+                    return;
+                }
+                chain.doFilter(ht);
+            }
+
+            @Override
+            public String description() {
+                return "Queue overflow";
+            }
+        };
+    }
+
+    public int limit() {
+        return limit;
+    }
+
+    public int inflight() {
+        return inflight.get();
+    }
+
+    private boolean tryAcquire() {
+        while (true) {
+            int current = inflight.get();
+            if (current >= limit) {
+                return false;
+            }
+            if (inflight.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    private void release(long rtt) {
+        inflight.decrementAndGet();
+        if (adaptive) {
+            update(Math.max(rtt, 1));
+        }
+    }
+
+    private synchronized void update(long rtt) {
+        if (long_rtt == 0) {
+            short_rtt = rtt;
+            long_rtt = rtt;
+        }
+        short_rtt = short_rtt * 0.9 + rtt * 0.1;
+        long_rtt = long_rtt * (1 - 1.0 / 600) + rtt / 600.0;
+        if (long_rtt > 2 * short_rtt) {
+            // the load went away, do not keep the old baseline for long
+            long_rtt *= 0.95;
+        }
+        if (inflight.get() < estimate / 2 && short_rtt <= long_rtt) {
+            // not limited by us, nothing to learn
+            return;
+        }
+        double gradient = Math.max(0.5, Math.min(1.0, 1.5 * long_rtt / short_rtt));
+        double target = estimate * gradient + Math.sqrt(estimate);
+        estimate = Math.max(min_limit, Math.min(max_limit, estimate * 0.8 + target * 0.2));
+        limit = (int) estimate;
+    }
+
+    private void reject(HttpExchange ht) throws IOException {
+        ht.getResponseHeaders().set("Retry-After", String.valueOf(retry_after));
+        try (OutputStream res = ht.getResponseBody()) {
+            ht.sendResponseHeaders(503, OVERLOADED.length);
+            res.write(OVERLOADED);
+        }
+    }
+}
@@ -0,0 +1,259 @@
+/*
+ * Copyright (C) 2016 theofilos
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.thmour.dvote;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The master side of the binary internal transport, see
+ * {@link FrameServer}. Every worker gets one connection that carries any
+ * number of requests at once: senders queue whole frames for its writer
+ * thread and a reader thread completes the pending requests by id as the
+ * replies come back, in whatever order the worker sends them.
+ * <p>
+ * A sender never blocks on the socket, so a worker that stops reading
+ * cannot hold up the requests to the others. A request without a reply in
+ * time closes its connection, which also frees a writer stuck on a full
+ * socket buffer, and the next request connects again.
+ *
+ * @author theofilos
+ */
+public class FrameClient {
+
+    private static final Logger LOGGER = Logger.getLogger(FrameClient.class.getName());
+
+    private final ConcurrentHashMap<String, Connection> connections = new ConcurrentHashMap<>();
+    // one per worker, so a slow connect holds up only the requests to that worker
+    private final ConcurrentHashMap<String, Object> connecting = new ConcurrentHashMap<>();
+    private final AtomicInteger ids = new AtomicInteger();
+    private final int connectTimeout;
+    private final int readTimeout;
+    private final int portOffset;
+
+    private class Connection {
+
+        final String address;
+        final SocketChannel channel;
+        final ConcurrentHashMap<Integer, CompletableFuture<WorkerClient.Response>> pending
+                = new ConcurrentHashMap<>();
+        final LinkedBlockingQueue<ByteBuffer> outbox = new LinkedBlockingQueue<>();
+        final Thread writer;
+        volatile boolean closed = false;
+
+        Connection(String address, SocketChannel channel) {
+            this.address = address;
+            this.channel = channel;
+            Thread reader = new Thread(this::read, "frame-client-" + address);
+            reader.setDaemon(true);
+            reader.start();
+            writer = new Thread(this::write, "frame-writer-" + address);
+            writer.setDaemon(true);
+            writer.start();
+        }
+
+        /**
+         * Writes the queued frames, as many as are waiting in one gathering
+         * write.
+         */
+        private void write() {
+            ByteBuffer[] frames = new ByteBuffer[64];
+            try {
+                while (!closed) {
+                    frames[0] = outbox.take();
+                    int count = 1;
+                    while (count < frames.length && (frames[count] = outbox.poll()) != null) {
+                        count++;
+                    }
+                    while (frames[count - 1].hasRemaining()) {
+                        channel.write(frames, 0, count);
+                    }
+                    Arrays.fill(frames, 0, count, null);
+                }
+            } catch (IOException ex) {
+                close(ex);
+            } catch (InterruptedException ex) {
+                // closed
+            }
+        }
+
+        private void read() {
+            try (DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(Channels.newInputStream(channel)))) {
+                while (true) {
+                    int length = in.readInt();
+                    int id = in.readInt();
+                    int status = in.readShort();
+                    byte[] body = new byte[length - Integer.BYTES - Short.BYTES];
+                    in.readFully(body);
+                    CompletableFuture<WorkerClient.Response> reply = pending.remove(id);
+                    if (reply != null) {
+                        reply.complete(new WorkerClient.Response(status, body));
+                    }
+                }
+            } catch (IOException ex) {
+                if (!(ex instanceof EOFException)) {
+                    LOGGER.log(Level.FINE, null, ex);
+                }
+                close(ex);
+            }
+        }
+
+        void close(IOException cause) {
+            closed = true;
+            connections.remove(address, this);
+            try {
+                channel.close();
+            } catch (IOException ex) {
+                LOGGER.log(Level.FINE, null, ex);
+            }
+            if (Thread.currentThread() != writer) {
+                writer.interrupt();
+            }
+            outbox.clear();
+            pending.forEach((id, reply) -> reply.completeExceptionally(cause));
+            pending.clear();
+        }
+    }
+
+    /**
+     * @param connectTimeout milliseconds to wait for a connection
+     * @param readTimeout milliseconds to wait for a reply
+     * @param portOffset added to a worker's http port to get its frame port
+     */
+    public FrameClient(int connectTimeout, int readTimeout, int portOffset) {
+        this.connectTimeout = connectTimeout;
+        this.readTimeout = readTimeout;
+        this.portOffset = portOffset;
+    }
+
+    public CompletableFuture<WorkerClient.Response> send(String host, int port, byte op,
+            byte[] payload) {
+        return send(host, port, op, payload, readTimeout);
+    }
+
+    /**
+     * @param host a worker host, or host:port to override {@code port}
+     */
+    public CompletableFuture<WorkerClient.Response> send(String host, int port, byte op,
+            byte[] payload, int timeout) {
+        CompletableFuture<WorkerClient.Response> reply = new CompletableFuture<>();
+        int length = payload == null ? 0 : payload.length;
+        int id = ids.incrementAndGet();
+        ByteBuffer frame = ByteBuffer.allocate(2 * Integer.BYTES + 1 + length)
+                .putInt(Integer.BYTES + 1 + length).putInt(id).put(op);
+        if (length > 0) {
+            frame.put(payload);
+        }
+        frame.flip();
+        Connection con = null;
+        try {
+            con = connection(host, port);
+            con.pending.put(id, reply);
+            con.outbox.add(frame);
+            if (con.closed) {
+                throw new IOException("Connection to " + con.address + " closed");
+            }
+        } catch (IOException ex) {
+            if (con != null) {
+                con.pending.remove(id);
+                con.close(ex);
+            }
+            reply.completeExceptionally(ex);
+            return reply;
+        }
+        Connection sent = con;
+        reply.orTimeout(timeout, TimeUnit.MILLISECONDS).whenComplete((res, ex) -> {
+            sent.pending.remove(id);
+            if (ex instanceof TimeoutException) {
+                // the worker stopped reading or answering, start over on a new connection
+                sent.close(new IOException("No reply from " + sent.address
+                        + " in " + timeout + " ms"));
+            }
+        });
+        return reply;
+    }
+
+    public WorkerClient.Response call(String host, int port, byte op, byte[] payload)
+            throws IOException {
+        return call(host, port, op, payload, readTimeout);
+    }
+
+    /**
+     * Sends a frame and waits for its reply.
+     */
+    public WorkerClient.Response call(String host, int port, byte op, byte[] payload,
+            int timeout) throws IOException {
+        try {
+            return send(host, port, op, payload, timeout).get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException(ex);
+        } catch (ExecutionException ex) {
+            throw ex.getCause() instanceof IOException ? (IOException) ex.getCause()
+                    : new IOException(ex.getCause());
+        }
+    }
+
+    public void close() {
+        connections.values().forEach(con -> con.close(new IOException("Client closed")));
+    }
+
+    private Connection connection(String host, int port) throws IOException {
+        String key = host + ":" + port;
+        Connection con = connections.get(key);
+        if (con != null) {
+            return con;
+        }
+        synchronized (connecting.computeIfAbsent(key, k -> new Object())) {
+            con = connections.get(key);
+            if (con == null) {
+                int colon = host.lastIndexOf(':');
+                String name = colon < 0 ? host : host.substring(0, colon);
+                int http_port = colon < 0 ? port : Integer.parseInt(host.substring(colon + 1));
+                SocketChannel channel = SocketChannel.open();
+                try {
+                    channel.socket().setTcpNoDelay(true);
+                    channel.socket().connect(
+                            new InetSocketAddress(name, http_port + portOffset), connectTimeout);
+                } catch (IOException ex) {
+                    channel.close();
+                    throw ex;
+                }
+                con = new Connection(key, channel);
+                connections.put(key, con);
+            }
+            return con;
+        }
+    }
+}
@@ -0,0 +1,223 @@
+/*
+ * Copyright (C) 2016 theofilos
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.thmour.dvote;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The worker side of the binary internal transport. One selector thread
+ * accepts connections and reads length-prefixed frames from them, the
+ * handler runs on the given executor and may reply from any thread and in
+ * any order, the request id pairs a reply with its request.
+ *
+ * <pre>
+ * request:  int length, int id, byte op, payload
+ * response: int length, int id, short status, body
+ * </pre>
+ *
+ * @author theofilos
+ */
+public class FrameServer {
+
+    private static final Logger LOGGER = Logger.getLogger(FrameServer.class.getName());
+    static final int MAX_FRAME = 64 << 20;
+
+    private final ServerSocketChannel listener;
+    private final Selector selector;
+    private final Handler handler;
+    private final Executor executor;
+    private final ConcurrentLinkedQueue<Connection> writable = new ConcurrentLinkedQueue<>();
+    private final Thread loop;
+    private volatile boolean running = true;
+
+    public interface Reply {
+
+        void send(int status, byte[] body);
+    }
+
+    public interface Handler {
+
+        void handle(byte op, byte[] payload, Reply reply);
+    }
+
+    private class Connection {
+
+        final SocketChannel channel;
+        final ConcurrentLinkedQueue<ByteBuffer> out = new ConcurrentLinkedQueue<>();
+        ByteBuffer in = ByteBuffer.allocate(64 << 10);
+        SelectionKey key;
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        void reply(int id, int status, byte[] body) {
+            int length = body == null ? 0 : body.length;
+            ByteBuffer frame = ByteBuffer.allocate(2 * Integer.BYTES + Short.BYTES + length)
+                    .putInt(Integer.BYTES + Short.BYTES + length).putInt(id).putShort((short) status);
+            if (length > 0) {
+                frame.put(body);
+            }
+            frame.flip();
+            out.add(frame);
+            writable.add(this);
+            selector.wakeup();
+        }
+    }
+
+    public FrameServer(int port, Handler handler, Executor executor) throws IOException {
+        this.handler = handler;
+        this.executor = executor;
+        this.selector = Selector.open();
+        this.listener = ServerSocketChannel.open();
+        listener.bind(new InetSocketAddress(port));
+        listener.configureBlocking(false);
+        listener.register(selector, SelectionKey.OP_ACCEPT);
+        this.loop = new Thread(this::run, "frame-server-" + port);
+        loop.setDaemon(true);
+        LOGGER.log(Level.INFO, "Frame transport ready at {0}", String.valueOf(port));
+    }
+
+    public void start() {
+        loop.start();
+    }
+
+    public void stop() {
+        running = false;
+        selector.wakeup();
+        try {
+            listener.close();
+        } catch (IOException ex) {
+            LOGGER.log(Level.FINE, null, ex);
+        }
+    }
+
+    private void run() {
+        while (running) {
+            try {
+                selector.select();
+                Connection pending;
+                while ((pending = writable.poll()) != null) {
+                    if (pending.key.isValid()) {
+                        pending.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                    }
+                }
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    try {
+                        if (key.isAcceptable()) {
+                            accept();
+                        } else {
+                            if (key.isReadable()) {
+                                read((Connection) key.attachment());
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                write((Connection) key.attachment());
+                            }
+                        }
+                    } catch (IOException ex) {
+                        LOGGER.log(Level.FINE, null, ex);
+                        close(key);
+                    }
+                }
+            } catch (IOException ex) {
+                LOGGER.log(Level.SEVERE, null, ex);
+            }
+        }
+        for (SelectionKey key : selector.keys()) {
+            close(key);
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = listener.accept();
+        if (channel == null) {
+            return;
+        }
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+        Connection con = new Connection(channel);
+        con.key = channel.register(selector, SelectionKey.OP_READ, con);
+    }
+
+    private void read(Connection con) throws IOException {
+        if (con.channel.read(con.in) == -1) {
+            throw new IOException("Connection closed");
+        }
+        con.in.flip();
+        while (con.in.remaining() >= Integer.BYTES) {
+            int length = con.in.getInt(con.in.position());
+            if (length < Integer.BYTES + 1 || length > MAX_FRAME) {
+                throw new IOException("Bad frame length " + length);
+            }
+            if (con.in.remaining() < Integer.BYTES + length) {
+                if (con.in.capacity() < Integer.BYTES + length) {
+                    ByteBuffer larger = ByteBuffer.allocate(Integer.BYTES + length);
+                    larger.put(con.in);
+                    larger.flip();
+                    con.in = larger;
+                }
+                break;
+            }
+            con.in.getInt();
+            int id = con.in.getInt();
+            byte op = con.in.get();
+            byte[] payload = new byte[length - Integer.BYTES - 1];
+            con.in.get(payload);
+            executor.execute(() -> handler.handle(op, payload,
+                    (status, body) -> con.reply(id, status, body)));
+        }
+        con.in.compact();
+    }
+
+    private void write(Connection con) throws IOException {
+        ByteBuffer frame;
+        while ((frame = con.out.peek()) != null) {
+            con.channel.write(frame);
+            if (frame.hasRemaining()) {
+                return;
+            }
+            con.out.poll();
+        }
+        con.key.interestOps(SelectionKey.OP_READ);
+        if (!con.out.isEmpty()) {
+            con.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        }
+    }
+
+    private void close(SelectionKey key) {
+        key.cancel();
+        try {
+            key.channel().close();
+        } catch (IOException ex) {
+            LOGGER.log(Level.FINE, null, ex);
+        }
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2016 theofilos
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.thmour.dvote;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Consistent hash ring with virtual nodes. Voters hash into a fixed number
+ * of partitions (the data fragments), and every partition is stored by the
+ * first {@code replication} distinct workers found clockwise from its
+ * position. Adding or removing a worker only moves the partitions next to
+ * its virtual nodes. Master and workers build the same ring from the same
+ * member list.
+ *
+ * @author theofilos
+ */
+public class HashRing {
+
+    private final String[] members;
+    private final int partitions;
+    private final int[][] replicas;
+
+    /**
+     * @param members worker hosts by worker id, null for removed workers
+     * @param vnodes virtual nodes per worker
+     * @param partitions number of data fragments, at most Short.MAX_VALUE
+     * @param replication replicas per partition
+     */
+    public HashRing(String[] members, int vnodes, int partitions, int replication) {
+        this.members = members.clone();
+        this.partitions = partitions;
+
+        int live = 0;
+        for (String member : members) {
+            if (member != null) {
+                live++;
+            }
+        }
+        long[] tokens = new long[live * vnodes];
+        int[] owners = new int[tokens.length];
+        int t = 0;
+        for (int wid = 0; wid < members.length; wid++) {
+            if (members[wid] == null) {
+                continue;
+            }
+            for (int v = 0; v < vnodes; v++) {
+                // owner id in the low bits keeps equal hashes ordered
+                tokens[t++] = (hash(members[wid] + "#" + v) & ~0xFFFFL) | wid;
+            }
+        }
+        Arrays.sort(tokens);
+        for (int i = 0; i < tokens.length; i++) {
+            owners[i] = (int) (tokens[i] & 0xFFFF);
+        }
+
+        int n = Math.min(replication, live);
+        this.replicas = new int[partitions][];
+        for (int p = 0; p < partitions; p++) {
+            int[] list = new int[n];
+            int found = 0;
+            int i = Arrays.binarySearch(tokens, mix(p) & ~0xFFFFL);
+            i = i < 0 ? -i - 1 : i;
+            for (int step = 0; step < tokens.length && found < n; step++) {
+                int owner = owners[(i + step) % tokens.length];
+                boolean seen = false;
+                for (int j = 0; j < found; j++) {
+                    seen |= list[j] == owner;
+                }
+                if (!seen) {
+                    list[found++] = owner;
+                }
+            }
+            replicas[p] = list;
+        }
+    }
+
+    public int partitions() {
+        return partitions;
+    }
+
+    public String[] members() {
+        return members.clone();
+    }
+
+    public boolean isMember(int worker) {
+        return worker < members.length && members[worker] != null;
+    }
+
+    public int partition(int voter) {
+        return (int) ((mix(voter) >>> 1) % partitions);
+    }
+
+    /**
+     * The workers storing a partition, in ring order. Do not modify.
+     */
+    public int[] replicas(int partition) {
+        return replicas[partition];
+    }
+
+    /**
+     * The partitions a worker stores a replica of.
+     */
+    public int[] partitionsOf(int worker) {
+        int count = 0;
+        int[] owned = new int[partitions];
+        for (int p = 0; p < partitions; p++) {
+            for (int wid : replicas[p]) {
+                if (wid == worker) {
+                    owned[count++] = p;
+                    break;
+                }
+            }
+        }
+        return Arrays.copyOf(owned, count);
+    }
+
+    private static long mix(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return key;
+    }
+
+    private static long hash(String key) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+            h ^= b & 0xFF;
+            h *= 0x100000001b3L;
+        }
+        return mix(h);
+    }
+}
@@ -0,0 +1,226 @@
+/*
+ * Copyright (C) 2016 theofilos
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.thmour.dvote;
+
+import com.sun.net.httpserver.Filter;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Counters, gauges and latency histograms of a node, served in the
+ * Prometheus text format. Recording is a few LongAdder increments, so it
+ * stays on the hot paths; everything is registered once at startup.
+ *
+ * @author theofilos
+ */
+public class Metrics {
+
+    /**
+     * Upper bounds of the latency buckets, in seconds.
+     */
+    private static final double[] BOUNDS = {0.0001, 0.00025, 0.0005, 0.001, 0.0025,
+        0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10};
+    private static final long[] BOUNDS_NANOS = new long[BOUNDS.length];
+
+    static {
+        for (int i = 0; i < BOUNDS.length; i++) {
+            BOUNDS_NANOS[i] = (long) (BOUNDS[i] * 1e9);
+        }
+    }
+
+    private final Map<String, Family> families = new LinkedHashMap<>();
+
+    private static class Family {
+
+        final String help;
+        final String type;
+        final Map<String, Object> series = new LinkedHashMap<>();
+
+        Family(String help, String type) {
+            this.help = help;
+            this.type = type;
+        }
+    }
+
+    public static class Counter {
+
+        private final LongAdder value = new LongAdder();
+
+        public void inc() {
+            value.increment();
+        }
+
+        public void add(long n) {
+            value.add(n);
+        }
+    }
+
+    public static class Histogram {
+
+        private final LongAdder[] buckets = new LongAdder[BOUNDS.length + 1];
+        private final LongAdder sum = new LongAdder();
+
+        Histogram() {
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        public void observe(long nanos) {
+            int i = 0;
+            while (i < BOUNDS_NANOS.length && nanos > BOUNDS_NANOS[i]) {
+                i++;
+            }
+            buckets[i].increment();
+            sum.add(nanos);
+        }
+
+        /**
+         * Observes the time since {@code start}, a System.nanoTime value.
+         */
+        public void since(long start) {
+            observe(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Formats one label, for the {@code labels} of the metric factories.
+     */
+    public static String label(String name, String value) {
+        return name + "=\"" + value.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+    }
+
+    public synchronized Counter counter(String name, String help, String labels) {
+        return (Counter) family(name, help, "counter").series
+                .computeIfAbsent(labels, k -> new Counter());
+    }
+
+    public synchronized Histogram histogram(String name, String help, String labels) {
+        return (Histogram) family(name, help, "histogram").series
+                .computeIfAbsent(labels, k -> new Histogram());
+    }
+
+    public synchronized void gauge(String name, String help, String labels, LongSupplier value) {
+        family(name, help, "gauge").series.put(labels, value);
+    }
+
+    /**
+     * Times the requests of an http context until their response is
+     * closed, so asynchronous handlers are measured too.
+     */
+    public Filter timer(Histogram histogram) {
+        return new Filter() {
+            @Override
+            public void doFilter(HttpExchange ht, Chain chain) throws IOException {
+                long start = System.nanoTime();
+                AtomicBoolean done = new AtomicBoolean(false);
+                ht.setStreams(null, new FilterOutputStream(ht.getResponseBody()) {
+                    @Override
+                    public void write(byte[] b, int off, int len) throws IOException {
+                        out.write(b, off, len);
+                    }
+
+                    @Override
+                    public void close() throws IOException {
+                        try {
+                            super.close();
+                        } finally {
+                            if (done.compareAndSet(false, true)) {
+                                histogram.since(start);
+                            }
+                        }
+                    }
+                });
+                chain.doFilter(ht);
+            }
+
+            @Override
+            public String description() {
+                return "Latency histogram";
+            }
+        };
+    }
+
+    public HttpHandler handler() {
+        return (HttpExchange ht) -> {
+            byte[] message = render().getBytes(StandardCharsets.UTF_8);
+            ht.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4");
+            try (OutputStream res = ht.getResponseBody()) {
+                ht.sendResponseHeaders(200, message.length);
+                res.write(message);
+            }
+        };
+    }
+
+    public synchronized String render() {
+        StringBuilder sb = new StringBuilder();
+        families.forEach((name, family) -> {
+            sb.append("# HELP ").append(name).append(' ').append(family.help).append('\n');
+            sb.append("# TYPE ").append(name).append(' ').append(family.type).append('\n');
+            family.series.forEach((labels, metric) -> {
+                if (metric instanceof Counter) {
+                    sample(sb, name, labels, null, ((Counter) metric).value.sum());
+                } else if (metric instanceof LongSupplier) {
+                    sample(sb, name, labels, null, ((LongSupplier) metric).getAsLong());
+                } else {
+                    Histogram histogram = (Histogram) metric;
+                    long count = 0;
+                    for (int i = 0; i < histogram.buckets.length; i++) {
+                        count += histogram.buckets[i].sum();
+                        String le = i < BOUNDS.length ? String.valueOf(BOUNDS[i]) : "+Inf";
+                        sample(sb, name + "_bucket", labels, label("le", le), count);
+                    }
+                    sb.append(name).append("_sum").append(braces(labels, null)).append(' ')
+                            .append(histogram.sum.sum() / 1e9).append('\n');
+                    sample(sb, name + "_count", labels, null, count);
+                }
+            });
+        });
+        return sb.toString();
+    }
+
+    private Family family(String name, String help, String type) {
+        Family family = families.computeIfAbsent(name, k -> new Family(help, type));
+        if (!family.type.equals(type)) {
+            throw new IllegalArgumentException(name + " is a " + family.type);
+        }
+        return family;
+    }
+
+    private static void sample(StringBuilder sb, String name, String labels, String extra,
+            long value) {
+        sb.append(name).append(braces(labels, extra)).append(' ').append(value).append('\n');
+    }
+
+    private static String braces(String labels, String extra) {
+        boolean has = labels != null && !labels.isEmpty();
+        if (!has && extra == null) {
+            return "";
+        }
+        return "{" + (has ? labels : "") + (has && extra != null ? "," : "")
+                + (extra != null ? extra : "") + "}";
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2016 theofilos
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.thmour.dvote;
+
+/**
+ * Wire constants shared by the master and the workers.
+ *
+ * @author theofilos
+ */
+public final class Protocol {
+
+    /**
+     * Per-record status bytes of a /batch_store response, one byte for
+     * every record of the request frame, in the same order.
+     */
+    public static final byte STORED = 0;
+    public static final byte EXISTS = 1;
+    public static final byte FAILED = 2;
+
+    /**
+     * Operations of the binary internal transport, each one answers like
+     * the http endpoint of the same name.
+     */
+    public static final byte OP_STORE = 1;
+    public static final byte OP_RESULTS = 2;
+    public static final byte OP_ALIVE = 3;
+    public static final byte OP_RESOLVE = 4;
+    public static final byte OP_BATCH_STORE = 5;
+
+    /**
+     * Length of a store record: short data_id, int voter, short candidate,
+     * long timestamp, big-endian.
+     */
+    public static final int RECORD_LEN = 2 * Short.BYTES + Integer.BYTES + Long.BYTES;
+
+    private Protocol() {
+    }
+
+    /**
+     * Maps a /batch_store record status to the response code the same
+     * record would get from /store.
+     */
+    public static int statusCode(byte status) {
+        switch (status) {
+            case STORED:
+                return 200;
+            case EXISTS:
+                return 400;
+            default:
+                return 507;
+        }
+    }
+
+    /**
+     * Writes a store record at {@code off}, the same bytes a ByteBuffer
+     * would put, without wrapping the array.
+     */
+    public static void putRecord(byte[] dst, int off, short data_id, int voter,
+            short candidate, long timestamp) {
+        dst[off] = (byte) (data_id >>> 8);
+        dst[off + 1] = (byte) data_id;
+        dst[off + 2] = (byte) (voter >>> 24);
+        dst[off + 3] = (byte) (voter >>> 16);
+        dst[off + 4] = (byte) (voter >>> 8);
+        dst[off + 5] = (byte) voter;
+        dst[off + 6] = (byte) (candidate >>> 8);
+        dst[off + 7] = (byte) candidate;
+        for (int i = 0; i < Long.BYTES; i++) {
+            dst[off + 8 + i] = (byte) (timestamp >>> (56 - 8 * i));
+        }
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2016 theofilos
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.thmour.dvote;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Executors of the servers, on platform threads or, with
+ * {@code executor=virtual}, on virtual threads. Virtual threads are looked
+ * up at runtime, so the same jars run on older JVMs, where the virtual mode
+ * falls back to platform threads.
+ *
+ * @author theofilos
+ */
+public final class Threads {
+
+    private static final Logger LOGGER = Logger.getLogger(Threads.class.getName());
+    private static final ThreadFactory VIRTUAL = virtualFactory();
+
+    private Threads() {
+    }
+
+    /**
+     * Reads the {@code executor} setting, {@code pool} or {@code virtual}.
+     */
+    public static boolean isVirtual(String mode) {
+        boolean virtual = "virtual".equalsIgnoreCase(mode.trim());
+        if (virtual && VIRTUAL == null) {
+            LOGGER.log(Level.WARNING, "Virtual threads need Java 21, using thread pools");
+            return false;
+        }
+        return virtual;
+    }
+
+    public static ThreadFactory factory(boolean virtual) {
+        return virtual && VIRTUAL != null ? VIRTUAL : Executors.defaultThreadFactory();
+    }
+
+    /**
+     * A fixed pool of {@code threads}, or a virtual thread per task.
+     */
+    public static ExecutorService fixed(boolean virtual, int threads) {
+        if (virtual && VIRTUAL != null) {
+            return perTask();
+        }
+        return Executors.newFixedThreadPool(threads);
+    }
+
+    /**
+     * A cached pool, or a virtual thread per task.
+     */
+    public static ExecutorService cached(boolean virtual) {
+        if (virtual && VIRTUAL != null) {
+            return perTask();
+        }
+        return Executors.newCachedThreadPool();
+    }
+
+    /**
+     * A scheduled pool of {@code threads}, which can be resized later.
+     */
+    public static ScheduledThreadPoolExecutor scheduled(boolean virtual, int threads) {
+        return new ScheduledThreadPoolExecutor(threads, factory(virtual));
+    }
+
+    private static ExecutorService perTask() {
+        try {
+            return (ExecutorService) Executors.class
+                    .getMethod("newThreadPerTaskExecutor", ThreadFactory.class)
+                    .invoke(null, VIRTUAL);
+        } catch (ReflectiveOperationException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    private static ThreadFactory virtualFactory() {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Method factory = Class.forName("java.lang.Thread$Builder").getMethod("factory");
+            return (ThreadFactory) factory.invoke(builder);
+        } catch (ReflectiveOperationException | RuntimeException ex) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,365 @@
+/*
+ * Copyright (C) 2016 theofilos
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.thmour.dvote;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Internal HTTP/1.1 client for master-to-worker and worker-to-worker
+ * traffic. Every host:port gets a bounded pool of keep-alive connections,
+ * so the hot path does not pay a TCP handshake per request.
+ * <p>
+ * A request that finds its pooled connection closed by the worker is sent
+ * again on a new one only if the worker cannot have run it: when writing
+ * the request failed, or when the request is idempotent. A /store that
+ * reached the worker before the connection dropped is not sent twice, it
+ * would come back as a vote already stored. The other idle connections of
+ * the pool are closed then, as they most likely went with a restart.
+ *
+ * @author theofilos
+ */
+public class WorkerClient {
+
+    private static final byte[] CRLF = {'\r', '\n'};
+
+    private final ConcurrentHashMap<String, Pool> pools = new ConcurrentHashMap<>();
+    private final int poolSize;
+    private final int connectTimeout;
+    private final int readTimeout;
+    private final long keepAlive;
+
+    public static class Response {
+
+        public final int status;
+        public final byte[] body;
+
+        Response(int status, byte[] body) {
+            this.status = status;
+            this.body = body;
+        }
+    }
+
+    private class Pool {
+
+        final String host;
+        final int port;
+        final Semaphore permits = new Semaphore(poolSize);
+        final ConcurrentLinkedDeque<Connection> idle = new ConcurrentLinkedDeque<>();
+
+        Pool(String host, int port) {
+            this.host = host;
+            this.port = port;
+        }
+    }
+
+    private static class StaleConnectionException extends IOException {
+
+        private static final long serialVersionUID = 1L;
+
+        // the whole request was written, the worker may have run it
+        final boolean delivered;
+
+        StaleConnectionException(Throwable cause, boolean delivered) {
+            super(cause);
+            this.delivered = delivered;
+        }
+    }
+
+    private static class Connection {
+
+        final Socket socket;
+        final InputStream in;
+        final OutputStream out;
+        long lastUsed;
+
+        Connection(Socket socket) throws IOException {
+            this.socket = socket;
+            this.in = new BufferedInputStream(socket.getInputStream());
+            this.out = new BufferedOutputStream(socket.getOutputStream());
+        }
+
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException ex) {
+                // nothing left to release
+            }
+        }
+    }
+
+    /**
+     * @param poolSize maximum open connections per worker
+     * @param connectTimeout milliseconds to wait for a connection, either
+     * from the pool or from the network
+     * @param readTimeout milliseconds to wait for a response
+     * @param keepAlive milliseconds an idle connection is kept, must be
+     * shorter than the server's idle interval
+     */
+    public WorkerClient(int poolSize, int connectTimeout, int readTimeout, long keepAlive) {
+        this.poolSize = poolSize;
+        this.connectTimeout = connectTimeout;
+        this.readTimeout = readTimeout;
+        this.keepAlive = keepAlive;
+    }
+
+    public Response post(String host, int port, String path, byte[] message)
+            throws IOException {
+        return post(host, port, path, message, readTimeout, false);
+    }
+
+    public Response post(String host, int port, String path, byte[] message,
+            boolean idempotent) throws IOException {
+        return post(host, port, path, message, readTimeout, idempotent);
+    }
+
+    public Response post(String host, int port, String path, byte[] message,
+            int timeout) throws IOException {
+        return post(host, port, path, message, timeout, false);
+    }
+
+    /**
+     * @param host a worker host, or host:port to override {@code port}
+     * @param idempotent the request may run twice, so it is sent again on a
+     * new connection even if a stale one dropped it after it was written
+     */
+    public Response post(String host, int port, String path, byte[] message,
+            int timeout, boolean idempotent) throws IOException {
+        Pool pool = pools.computeIfAbsent(host + ":" + port, key -> {
+            int colon = host.lastIndexOf(':');
+            return colon < 0 ? new Pool(host, port) : new Pool(host.substring(0, colon),
+                    Integer.parseInt(host.substring(colon + 1)));
+        });
+        try {
+            if (!pool.permits.tryAcquire(connectTimeout, TimeUnit.MILLISECONDS)) {
+                throw new IOException("No free connection to " + host + ":" + port);
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException(ex);
+        }
+        try {
+            Connection con = pollIdle(pool);
+            if (con != null) {
+                try {
+                    return exchange(pool, con, path, message, timeout);
+                } catch (StaleConnectionException ex) {
+                    // a restarted worker dropped the rest of the pool as well
+                    closeIdle(pool);
+                    if (ex.delivered && !idempotent) {
+                        throw ex;
+                    }
+                }
+            }
+            return exchange(pool, connect(pool), path, message, timeout);
+        } finally {
+            pool.permits.release();
+        }
+    }
+
+    public void close() {
+        pools.values().forEach(WorkerClient::closeIdle);
+    }
+
+    private static void closeIdle(Pool pool) {
+        Connection con;
+        while ((con = pool.idle.poll()) != null) {
+            con.close();
+        }
+    }
+
+    private Connection pollIdle(Pool pool) {
+        Connection con;
+        long now = System.currentTimeMillis();
+        while ((con = pool.idle.pollFirst()) != null) {
+            if (now - con.lastUsed < keepAlive && !con.socket.isClosed()) {
+                return con;
+            }
+            con.close();
+        }
+        return null;
+    }
+
+    private Connection connect(Pool pool) throws IOException {
+        Socket socket = new Socket();
+        try {
+            socket.setTcpNoDelay(true);
+            socket.setKeepAlive(true);
+            socket.connect(new InetSocketAddress(pool.host, pool.port), connectTimeout);
+            return new Connection(socket);
+        } catch (IOException ex) {
+            socket.close();
+            throw ex;
+        }
+    }
+
+    /**
+     * Throws {@link StaleConnectionException} when a reused connection
+     * fails before the status line, other than by a timeout.
+     */
+    private Response exchange(Pool pool, Connection con, String path,
+            byte[] message, int timeout) throws IOException {
+        boolean reusable = false;
+        boolean reused = con.lastUsed != 0;
+        try {
+            con.socket.setSoTimeout(timeout);
+            int length = message == null ? 0 : message.length;
+            String head = "POST " + path + " HTTP/1.1\r\n"
+                    + "Host: " + pool.host + ":" + pool.port + "\r\n"
+                    + "Content-Type: default/binary\r\n"
+                    + "Content-Length: " + length + "\r\n\r\n";
+            try {
+                con.out.write(head.getBytes(StandardCharsets.US_ASCII));
+                if (length > 0) {
+                    con.out.write(message);
+                }
+                con.out.flush();
+            } catch (SocketTimeoutException ex) {
+                throw ex;
+            } catch (IOException ex) {
+                // the worker never got the whole request
+                throw reused ? new StaleConnectionException(ex, false) : ex;
+            }
+            String status;
+            try {
+                status = readLine(con.in);
+                if (status == null) {
+                    throw new EOFException("Connection closed by " + pool.host);
+                }
+            } catch (SocketTimeoutException ex) {
+                throw ex;
+            } catch (IOException ex) {
+                // the worker may have run the request before it dropped the connection
+                throw reused ? new StaleConnectionException(ex, true) : ex;
+            }
+            int code = Integer.parseInt(status.substring(9, 12));
+            long contentLength = -1;
+            boolean chunked = false;
+            boolean keep = status.startsWith("HTTP/1.1");
+            String header;
+            while ((header = readLine(con.in)) != null && !header.isEmpty()) {
+                int colon = header.indexOf(':');
+                if (colon < 0) {
+                    continue;
+                }
+                String name = header.substring(0, colon).trim();
+                String value = header.substring(colon + 1).trim();
+                if (name.equalsIgnoreCase("Content-Length")) {
+                    contentLength = Long.parseLong(value);
+                } else if (name.equalsIgnoreCase("Transfer-Encoding")) {
+                    chunked = value.equalsIgnoreCase("chunked");
+                } else if (name.equalsIgnoreCase("Connection")) {
+                    keep = !value.equalsIgnoreCase("close");
+                }
+            }
+
+            byte[] body;
+            if (chunked) {
+                body = readChunked(con.in);
+            } else if (contentLength >= 0) {
+                body = readFully(con.in, (int) contentLength);
+            } else {
+                keep = false;
+                body = readToEnd(con.in);
+            }
+            reusable = keep;
+            return new Response(code, body);
+        } finally {
+            if (reusable) {
+                con.lastUsed = System.currentTimeMillis();
+                pool.idle.offerFirst(con);
+            } else {
+                con.close();
+            }
+        }
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        int c;
+        while ((c = in.read()) != -1) {
+            if (c == '\n') {
+                int len = sb.length();
+                if (len > 0 && sb.charAt(len - 1) == '\r') {
+                    sb.setLength(len - 1);
+                }
+                return sb.toString();
+            }
+            sb.append((char) c);
+        }
+        return sb.length() == 0 ? null : sb.toString();
+    }
+
+    private static byte[] readFully(InputStream in, int length) throws IOException {
+        byte[] body = new byte[length];
+        int off = 0;
+        while (off < length) {
+            int read = in.read(body, off, length - off);
+            if (read == -1) {
+                throw new EOFException("Truncated response");
+            }
+            off += read;
+        }
+        return body;
+    }
+
+    private static byte[] readChunked(InputStream in) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        while (true) {
+            String line = readLine(in);
+            if (line == null) {
+                throw new EOFException("Truncated chunked response");
+            }
+            int ext = line.indexOf(';');
+            int size = Integer.parseInt(ext < 0 ? line.trim()
+                    : line.substring(0, ext).trim(), 16);
+            if (size == 0) {
+                while ((line = readLine(in)) != null && !line.isEmpty()) {
+                    // skip trailers
+                }
+                return body.toByteArray();
+            }
+            body.write(readFully(in, size));
+            if (in.read() != CRLF[0] || in.read() != CRLF[1]) {
+                throw new IOException("Malformed chunk");
+            }
+        }
+    }
+
+    private static byte[] readToEnd(InputStream in) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            body.write(buffer, 0, read);
+        }
+        return body.toByteArray();
+    }
+}
@@ -0,0 +1,241 @@
+/*
+ * Copyright (C) 2016 theofilos
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.thmour.dvote;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * A master and N workers as local processes on consecutive localhost
+ * ports, each in its own temporary directory with its jars and its
+ * config.properties, the way they are deployed on separate machines.
+ * The workers run with fault.injection on.
+ *
+ * @author theofilos
+ */
+class Cluster implements AutoCloseable {
+
+    private final Path dist;
+    private final Path root;
+    private final int base_port;
+    private final int workers;
+    private final Map<String, String> config;
+    private final boolean keep;
+    private final Process[] processes;
+    private Process master;
+
+    /**
+     * @param dist directory of the DVote jars
+     * @param base_port the master's port, worker i listens on base_port + 1 + i
+     * @param config settings written to every config.properties
+     * @param keep leave the directories behind, with the data and logs
+     */
+    Cluster(Path dist, int base_port, int workers, Map<String, String> config,
+            boolean keep) throws IOException {
+        this.keep = keep;
+        this.dist = dist;
+        this.root = Files.createTempDirectory("dvote-cluster");
+        this.base_port = base_port;
+        this.workers = workers;
+        this.config = config;
+        this.processes = new Process[workers];
+    }
+
+    String master() {
+        return "localhost:" + base_port;
+    }
+
+    int workers() {
+        return workers;
+    }
+
+    String worker(int wid) {
+        return "localhost:" + workerPort(wid);
+    }
+
+    Path root() {
+        return root;
+    }
+
+    void start() throws IOException, InterruptedException {
+        for (int wid = 0; wid < workers; wid++) {
+            install(directory(wid), "DVoteWorker", workerPort(wid));
+        }
+        install(root.resolve("master"), "DVoteMaster", workerPort(0));
+        for (int wid = 0; wid < workers; wid++) {
+            processes[wid] = launch(directory(wid), "DVoteWorker");
+        }
+        for (int wid = 0; wid < workers; wid++) {
+            awaitUp(worker(wid), "/alive", processes[wid]);
+        }
+        master = launch(root.resolve("master"), "DVoteMaster");
+        awaitUp(master(), "/metrics", master);
+    }
+
+    /**
+     * Kills a worker without a chance to clean up, like a crash.
+     */
+    void kill(int wid) throws InterruptedException {
+        Process process = processes[wid];
+        if (process != null) {
+            process.destroyForcibly();
+            process.waitFor();
+            processes[wid] = null;
+        }
+    }
+
+    /**
+     * Starts a killed worker on its old data and waits until it answers.
+     */
+    void restart(int wid) throws IOException, InterruptedException {
+        kill(wid);
+        processes[wid] = launch(directory(wid), "DVoteWorker");
+        awaitUp(worker(wid), "/alive", processes[wid]);
+    }
+
+    /**
+     * Sends a command to the /fault endpoint of a worker: delay=ms,
+     * alive=drop, alive=ok or clear.
+     */
+    int fault(int wid, String command) throws IOException {
+        return request(worker(wid), "/fault", command.getBytes(StandardCharsets.UTF_8)).status;
+    }
+
+    String get(String path) throws IOException {
+        Response res = request(master(), path, null);
+        return new String(res.body, StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public void close() throws IOException, InterruptedException {
+        if (master != null) {
+            master.destroy();
+            master.waitFor(10, TimeUnit.SECONDS);
+        }
+        for (int wid = 0; wid < workers; wid++) {
+            if (processes[wid] != null) {
+                processes[wid].destroy();
+                processes[wid].waitFor(10, TimeUnit.SECONDS);
+            }
+        }
+        if (!keep) {
+            try (Stream<Path> files = Files.walk(root)) {
+                files.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+            }
+        }
+    }
+
+    private int workerPort(int wid) {
+        return base_port + 1 + wid;
+    }
+
+    private Path directory(int wid) {
+        return root.resolve("worker" + wid);
+    }
+
+    private void install(Path dir, String jar, int port) throws IOException {
+        Files.createDirectories(dir);
+        for (String name : new String[]{jar, "DVoteCommon"}) {
+            Files.copy(dist.resolve(name + ".jar"), dir.resolve(name + ".jar"),
+                    StandardCopyOption.REPLACE_EXISTING);
+        }
+        List<String> members = new ArrayList<>();
+        for (int wid = 0; wid < workers; wid++) {
+            members.add(worker(wid));
+        }
+        Map<String, String> properties = new LinkedHashMap<>();
+        properties.put("workers", String.join(",", members));
+        properties.put("master.port", String.valueOf(base_port));
+        properties.put("worker.port", String.valueOf(port));
+        properties.put("fault.injection", "true");
+        properties.putAll(config);
+        StringBuilder sb = new StringBuilder();
+        properties.forEach((key, value) -> sb.append(key).append('=').append(value).append('\n'));
+        Files.write(dir.resolve("config.properties"), sb.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static Process launch(Path dir, String jar) throws IOException {
+        String java = Path.of(System.getProperty("java.home"), "bin", "java").toString();
+        return new ProcessBuilder(java, "-jar", jar + ".jar")
+                .directory(dir.toFile())
+                .redirectErrorStream(true)
+                .redirectOutput(ProcessBuilder.Redirect.appendTo(dir.resolve("log").toFile()))
+                .start();
+    }
+
+    private static void awaitUp(String host, String path, Process process)
+            throws IOException, InterruptedException {
+        long deadline = System.currentTimeMillis() + 60_000;
+        while (System.currentTimeMillis() < deadline) {
+            if (!process.isAlive()) {
+                throw new IOException(host + " exited with " + process.exitValue());
+            }
+            try {
+                if (request(host, path, null).status == 200) {
+                    return;
+                }
+            } catch (IOException ex) {
+                // not listening yet
+            }
+            Thread.sleep(100);
+        }
+        throw new IOException(host + " did not start in time");
+    }
+
+    static class Response {
+
+        final int status;
+        final byte[] body;
+
+        Response(int status, byte[] body) {
+            this.status = status;
+            this.body = body;
+        }
+    }
+
+    static Response request(String host, String path, byte[] message) throws IOException {
+        HttpURLConnection con = (HttpURLConnection) new URL("http://" + host + path).openConnection();
+        con.setConnectTimeout(1000);
+        con.setReadTimeout(30000);
+        if (message != null) {
+            con.setDoOutput(true);
+            con.setRequestMethod("POST");
+            try (OutputStream out = con.getOutputStream()) {
+                out.write(message);
+            }
+        }
+        int status = con.getResponseCode();
+        try (InputStream in = status < 400 ? con.getInputStream() : con.getErrorStream()) {
+            return new Response(status, in == null ? new byte[0] : in.readAllBytes());
+        }
+    }
+}
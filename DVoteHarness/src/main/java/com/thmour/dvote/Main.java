@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2016 theofilos
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.thmour.dvote;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Runs a scenario against a local cluster,
+ * {@code java -jar DVoteHarness.jar <scenario|file> [key=value...]}.
+ *
+ * @author theofilos
+ */
+public class Main {
+
+    private static final String[] SCENARIOS = {"throughput", "recovery", "slow-worker",
+        "failure-detection"};
+    private static final String[] JARS = {"DVoteCommon", "DVoteWorker", "DVoteMaster",
+        "DVoteClient"};
+
+    public static void main(String[] args) throws Exception {
+        if (args.length == 0) {
+            System.err.println("Invalid arguments: <scenario|file> [key=value...]");
+            System.err.println("    scenarios: " + String.join(", ", SCENARIOS));
+            System.err.println("    dist=<dir> of the jars, keep=true leaves data and logs");
+            System.exit(1);
+        }
+        Map<String, String> variables = Script.options(Arrays.copyOfRange(args, 1, args.length));
+        Path dist = variables.containsKey("dist") ? Path.of(variables.remove("dist")) : dist();
+        boolean keep = Boolean.parseBoolean(variables.remove("keep"));
+        new Script(lines(args[0]), variables, dist, keep).run();
+    }
+
+    private static List<String> lines(String scenario) throws IOException {
+        Path file = Path.of(scenario);
+        if (Files.isRegularFile(file)) {
+            return Files.readAllLines(file);
+        }
+        try (InputStream in = Main.class.getResourceAsStream("/scenarios/" + scenario + ".txt")) {
+            if (in == null) {
+                throw new IllegalArgumentException("No scenario or file " + scenario);
+            }
+            return Arrays.asList(new String(in.readAllBytes(), StandardCharsets.UTF_8).split("\n"));
+        }
+    }
+
+    /**
+     * The directory of this jar when the DVote jars sit next to it, or else
+     * a temporary copy of the jars of the project's build.
+     */
+    private static Path dist() throws Exception {
+        Path here = Path.of(Main.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+        Path dir = Files.isDirectory(here) ? here : here.getParent();
+        if (Files.exists(dir.resolve("DVoteWorker.jar"))) {
+            return dir;
+        }
+        // DVoteHarness/target in a source tree
+        Path project = dir.getParent().getParent();
+        Path dist = Files.createTempDirectory("dvote-dist");
+        dist.toFile().deleteOnExit();
+        for (String jar : JARS) {
+            Path built = project.resolve(jar).resolve("target").resolve(jar + ".jar");
+            if (!Files.exists(built)) {
+                throw new IOException(built + " not found, build the project or pass dist=");
+            }
+            Files.copy(built, dist.resolve(jar + ".jar"));
+            dist.resolve(jar + ".jar").toFile().deleteOnExit();
+        }
+        return dist;
+    }
+}
@@ -0,0 +1,264 @@
+/*
+ * Copyright (C) 2016 theofilos
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.thmour.dvote;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Runs a scenario, one command per line:
+ * <pre>
+ * set key value             default for ${key}, the command line wins
+ * cluster [key=value...]    starts the cluster, workers= and port= pick its
+ *                           size and base port, the rest goes to the configs
+ * load [key=value...]       runs the client's load generator and waits
+ * load-async [key=value...] runs it in the background
+ * wait-load                 waits for the background load
+ * kill i / restart i        crashes / restarts worker i on its data
+ * delay i ms                adds latency to the requests of worker i
+ * drop-alive i / clear i    stops answering probes / clears the faults
+ * wait-available n [s]      waits until the master sees n workers
+ * wait-recovery i [s]       waits until the recovery of worker i is done
+ * get path                  prints a GET of the master
+ * sleep s / echo text
+ * </pre>
+ * Every command is printed with the time since the scenario started.
+ *
+ * @author theofilos
+ */
+class Script {
+
+    private static final Pattern VARIABLE = Pattern.compile("\\$\\{([^}]+)}");
+
+    private final List<String> lines;
+    private final Map<String, String> variables;
+    private final Path dist;
+    private final boolean keep;
+    private Cluster cluster;
+    private Process load;
+    private final Map<Integer, String> recoveries = new LinkedHashMap<>();
+    private long t0;
+
+    Script(List<String> lines, Map<String, String> variables, Path dist, boolean keep) {
+        this.lines = lines;
+        this.variables = new LinkedHashMap<>(variables);
+        this.dist = dist;
+        this.keep = keep;
+    }
+
+    void run() throws Exception {
+        t0 = System.nanoTime();
+        try {
+            for (String line : lines) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                String[] command = substitute(line).split("\\s+");
+                if (!"set".equals(command[0])) {
+                    log(String.join(" ", command));
+                }
+                execute(command);
+            }
+        } finally {
+            if (load != null) {
+                load.destroy();
+            }
+            if (cluster != null) {
+                cluster.close();
+                if (keep) {
+                    log("data and logs kept in " + cluster.root());
+                }
+            }
+        }
+    }
+
+    private void execute(String[] command) throws Exception {
+        String[] args = Arrays.copyOfRange(command, 1, command.length);
+        switch (command[0]) {
+            case "set":
+                variables.putIfAbsent(args[0], args.length > 1 ? args[1] : "");
+                break;
+            case "cluster":
+                Map<String, String> config = options(args);
+                int workers = Integer.parseInt(config.getOrDefault("workers", "3"));
+                int port = Integer.parseInt(config.getOrDefault("port", "19000"));
+                config.remove("workers");
+                config.remove("port");
+                cluster = new Cluster(dist, port, workers, config, keep);
+                cluster.start();
+                log("cluster of " + workers + " workers up, master at " + cluster.master());
+                break;
+            case "load":
+                int status = startLoad(args).waitFor();
+                if (status != 0) {
+                    throw new IOException("load generator exited with " + status);
+                }
+                break;
+            case "load-async":
+                load = startLoad(args);
+                break;
+            case "wait-load":
+                if (load != null) {
+                    load.waitFor();
+                    load = null;
+                }
+                break;
+            case "kill":
+                cluster.kill(Integer.parseInt(args[0]));
+                break;
+            case "restart":
+                // the recovery that follows must differ from the last one
+                recoveries.put(Integer.parseInt(args[0]), recovery(Integer.parseInt(args[0])));
+                cluster.restart(Integer.parseInt(args[0]));
+                break;
+            case "delay":
+                fault(args[0], "delay=" + args[1]);
+                break;
+            case "drop-alive":
+                fault(args[0], "alive=drop");
+                break;
+            case "clear":
+                fault(args[0], "clear");
+                break;
+            case "wait-available":
+                waitAvailable(Integer.parseInt(args[0]), timeout(args));
+                break;
+            case "wait-recovery":
+                waitRecovery(Integer.parseInt(args[0]), timeout(args));
+                break;
+            case "get":
+                System.out.println(cluster.get(args[0]).trim());
+                break;
+            case "sleep":
+                Thread.sleep((long) (Double.parseDouble(args[0]) * 1000));
+                break;
+            case "echo":
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown command " + command[0]);
+        }
+    }
+
+    private Process startLoad(String[] args) throws IOException {
+        List<String> command = new ArrayList<>(Arrays.asList(
+                Path.of(System.getProperty("java.home"), "bin", "java").toString(),
+                "-jar", dist.resolve("DVoteClient.jar").toString(), "load", cluster.master()));
+        command.addAll(Arrays.asList(args));
+        return new ProcessBuilder(command).inheritIO().start();
+    }
+
+    private void fault(String wid, String command) throws IOException {
+        int status = cluster.fault(Integer.parseInt(wid), command);
+        if (status != 200) {
+            throw new IOException("/fault answered " + status + ", is fault.injection on?");
+        }
+    }
+
+    private void waitAvailable(int count, long timeout) throws Exception {
+        long start = System.nanoTime();
+        Pattern gauge = Pattern.compile("(?m)^dvote_available_workers (\\d+)");
+        while (true) {
+            Matcher matcher = gauge.matcher(cluster.get("/metrics"));
+            if (matcher.find() && Integer.parseInt(matcher.group(1)) == count) {
+                log(count + " workers available after " + millis(start) + " ms");
+                return;
+            }
+            check(start, timeout, count + " available workers");
+            Thread.sleep(50);
+        }
+    }
+
+    /**
+     * Waits for a finished recovery of a worker other than the one the
+     * master reported before its last restart. A worker that missed no
+     * votes while down is not recovered at all.
+     */
+    private void waitRecovery(int wid, long timeout) throws Exception {
+        long start = System.nanoTime();
+        String previous = recoveries.get(wid);
+        while (true) {
+            String line = recovery(wid);
+            if (line != null && line.contains("state=done") && !line.equals(previous)) {
+                log("recovered after " + millis(start) + " ms: " + line);
+                return;
+            }
+            check(start, timeout, "the recovery of worker " + wid);
+            Thread.sleep(100);
+        }
+    }
+
+    /**
+     * The /recovery line of a worker, or null if it was never recovered.
+     */
+    private String recovery(int wid) throws IOException {
+        String prefix = "worker=" + cluster.worker(wid) + " ";
+        for (String line : cluster.get("/recovery").split("\n")) {
+            if (line.startsWith(prefix)) {
+                return line;
+            }
+        }
+        return null;
+    }
+
+    private static void check(long start, long timeout, String what) {
+        if (System.nanoTime() - start > timeout * 1_000_000_000L) {
+            throw new IllegalStateException("Timed out waiting for " + what);
+        }
+    }
+
+    private static long timeout(String[] args) {
+        return args.length > 1 ? Long.parseLong(args[1]) : 60;
+    }
+
+    private static long millis(long start) {
+        return (System.nanoTime() - start) / 1_000_000;
+    }
+
+    private void log(String message) {
+        System.out.printf("[%8.3fs] %s%n", (System.nanoTime() - t0) / 1e9, message);
+    }
+
+    private String substitute(String line) {
+        Matcher matcher = VARIABLE.matcher(line);
+        StringBuilder sb = new StringBuilder();
+        while (matcher.find()) {
+            String value = variables.get(matcher.group(1));
+            if (value == null) {
+                throw new IllegalArgumentException("Undefined variable " + matcher.group(1));
+            }
+            matcher.appendReplacement(sb, Matcher.quoteReplacement(value));
+        }
+        return matcher.appendTail(sb).toString();
+    }
+
+    static Map<String, String> options(String[] args) {
+        Map<String, String> options = new LinkedHashMap<>();
+        for (String arg : args) {
+            String[] option = arg.split("=", 2);
+            options.put(option[0], option.length == 2 ? option[1] : "");
+        }
+        return options;
+    }
+}
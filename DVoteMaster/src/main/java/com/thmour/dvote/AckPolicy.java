@@ -0,0 +1,44 @@
+/*
+ * Copyright (C) 2016 theofilos
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.thmour.dvote;
+
+/**
+ * How many replica acknowledgements a vote needs before the voter gets
+ * a response. The remaining replicas keep storing in the background.
+ *
+ * @author theofilos
+ */
+enum AckPolicy {
+    FIRST,
+    QUORUM,
+    ALL;
+
+    int required(int replicationFactor, int targets) {
+        switch (this) {
+            case FIRST:
+                return 1;
+            case QUORUM:
+                return replicationFactor / 2 + 1;
+            default:
+                return targets;
+        }
+    }
+
+    static AckPolicy fromString(String value) {
+        return valueOf(value.trim().toUpperCase());
+    }
+}
@@ -0,0 +1,176 @@
+/*
+ * Copyright (C) 2016 theofilos
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.thmour.dvote;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Phi accrual failure detector. Every worker keeps a window of heartbeat
+ * inter-arrival times, and its suspicion level phi grows with the time
+ * since its last heartbeat relative to that history. Probe replies are the
+ * heartbeats, while failed probes or data requests in a row suspect a
+ * worker right away.
+ * <p>
+ * A suspected worker is not trusted again on its first reply. It has to
+ * answer {@code revive_probes} probes in a row, each one in time for phi to
+ * be under the lower {@code revive_phi}, so a worker that hovers around the
+ * threshold does not flip in and out of the ring.
+ *
+ * @author theofilos
+ */
+class FailureDetector {
+
+    private final double threshold;
+    private final double revive_phi;
+    private final int revive_probes;
+    private final int max_failures;
+    private final long min_interval;
+    private final long pause;
+    private final int window;
+    private final ConcurrentHashMap<Integer, History> histories = new ConcurrentHashMap<>();
+
+    private class History {
+
+        final long[] intervals = new long[window];
+        int count = 0;
+        int next = 0;
+        long sum = 0;
+        long squares = 0;
+        long last = 0;
+        int failures = 0;
+        // heartbeats in a row that came before phi reached revive_phi
+        int timely = 0;
+
+        synchronized void heartbeat(long now) {
+            double level = phi(now);
+            if (failures == 0 && level < revive_phi) {
+                timely++;
+            } else {
+                timely = 0;
+            }
+            // a gap that failed or suspected the worker is an outage, not a heartbeat interval
+            if (last != 0 && failures == 0 && level < threshold) {
+                long interval = now - last;
+                if (count == window) {
+                    long old = intervals[next];
+                    sum -= old;
+                    squares -= old * old;
+                } else {
+                    count++;
+                }
+                intervals[next] = interval;
+                next = (next + 1) % window;
+                sum += interval;
+                squares += interval * interval;
+            }
+            last = now;
+            failures = 0;
+        }
+
+        synchronized void success() {
+            failures = 0;
+        }
+
+        synchronized void failure() {
+            failures++;
+            timely = 0;
+        }
+
+        synchronized double phi(long now) {
+            if (failures >= max_failures) {
+                return Double.POSITIVE_INFINITY;
+            }
+            if (last == 0) {
+                return 0;
+            }
+            double mean = count == 0 ? min_interval : (double) sum / count;
+            double variance = count == 0 ? 0 : (double) squares / count - mean * mean;
+            double stddev = Math.max(Math.sqrt(Math.max(variance, 0)), min_interval / 4.0);
+            mean += pause;
+            double elapsed = now - last;
+            double y = (elapsed - mean) / stddev;
+            double e = Math.exp(-y * (1.5976 + 0.070566 * y * y));
+            if (elapsed > mean) {
+                return -Math.log10(e / (1.0 + e));
+            }
+            return -Math.log10(1.0 - 1.0 / (1.0 + e));
+        }
+    }
+
+    /**
+     * @param threshold phi above which a worker is suspected
+     * @param revive_phi phi under which a probe reply counts towards
+     * trusting a suspected worker again
+     * @param revive_probes timely probe replies in a row that bring a
+     * suspected worker back
+     * @param max_failures consecutive failed requests that suspect a worker
+     * @param interval the probe interval in milliseconds
+     * @param pause the probe timeout in milliseconds, tolerated on top of
+     * the mean interval
+     * @param window heartbeat intervals kept per worker
+     */
+    FailureDetector(double threshold, double revive_phi, int revive_probes, int max_failures,
+            long interval, long pause, int window) {
+        this.threshold = threshold;
+        this.revive_phi = Math.min(revive_phi, threshold);
+        this.revive_probes = revive_probes;
+        this.max_failures = max_failures;
+        this.min_interval = interval;
+        this.pause = pause;
+        this.window = window;
+    }
+
+    void heartbeat(int wid) {
+        history(wid).heartbeat(System.currentTimeMillis());
+    }
+
+    /**
+     * A successful data request, clears the failures without touching the
+     * heartbeat history.
+     */
+    void success(int wid) {
+        history(wid).success();
+    }
+
+    void failure(int wid) {
+        history(wid).failure();
+    }
+
+    double phi(int wid) {
+        return history(wid).phi(System.currentTimeMillis());
+    }
+
+    boolean isSuspected(int wid) {
+        return phi(wid) >= threshold;
+    }
+
+    /**
+     * Whether a suspected worker answered enough probes in time to be
+     * trusted again.
+     */
+    boolean isRecovered(int wid) {
+        History history = history(wid);
+        synchronized (history) {
+            return history.timely >= revive_probes
+                    && history.phi(System.currentTimeMillis()) < revive_phi;
+        }
+    }
+
+    private History history(int wid) {
+        return histories.computeIfAbsent(wid, k -> new History());
+    }
+}
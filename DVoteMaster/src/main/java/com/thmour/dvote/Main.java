@@ -34,6 +34,8 @@ public class Main {
     private static final Logger LOGGER = Logger.getLogger(Main.class.getName());
     
     public static void main(String[] args) {
+        // keep-alive connections stall on delayed acks without it
+        System.setProperty("sun.net.httpserver.nodelay", "true");
         String path = null;
         try {
             path = Main.class.getProtectionDomain().getCodeSource()
@@ -62,7 +64,61 @@ public class Main {
             port = Integer.valueOf(prop.getProperty("master.port", "9000"));
             worker_port = Integer.valueOf(prop.getProperty("worker.port", "9090"));
             candidates = Integer.valueOf(prop.getProperty("candidates", "3"));
-            server = new Server(replicationFactor, workers, candidates, port, worker_port);
+            AckPolicy ackPolicy = AckPolicy.fromString(prop.getProperty("ack.policy", "first"));
+            WorkerClient client = new WorkerClient(
+                    Integer.valueOf(prop.getProperty("client.pool_size", "16")),
+                    Integer.valueOf(prop.getProperty("client.connect_timeout", "500")),
+                    Integer.valueOf(prop.getProperty("client.read_timeout", "2000")),
+                    Long.valueOf(prop.getProperty("client.keep_alive", "20000")));
+            boolean frame = "frame".equalsIgnoreCase(prop.getProperty("transport", "http").trim());
+            FrameClient frames = frame
+                    ? new FrameClient(
+                            Integer.valueOf(prop.getProperty("client.connect_timeout", "500")),
+                            Integer.valueOf(prop.getProperty("client.read_timeout", "2000")),
+                            Integer.valueOf(prop.getProperty("frame.port_offset", "1000")))
+                    : null;
+            int batchSize = Integer.valueOf(prop.getProperty("batch.size", "0"));
+            long batchLinger = Long.valueOf(prop.getProperty("batch.linger_ms", "2"));
+            int probe_interval = Integer.valueOf(prop.getProperty("detector.interval_ms", "200"));
+            int probe_timeout = Integer.valueOf(prop.getProperty("detector.timeout_ms", "250"));
+            // one probe at a time per worker, on a connection the other requests never wait for
+            WorkerClient probe_client = new WorkerClient(1,
+                    Integer.valueOf(prop.getProperty("client.connect_timeout", "500")),
+                    probe_timeout,
+                    Long.valueOf(prop.getProperty("client.keep_alive", "20000")));
+            FrameClient probe_frames = frame
+                    ? new FrameClient(
+                            Integer.valueOf(prop.getProperty("client.connect_timeout", "500")),
+                            probe_timeout,
+                            Integer.valueOf(prop.getProperty("frame.port_offset", "1000")))
+                    : null;
+            FailureDetector detector = new FailureDetector(
+                    Double.valueOf(prop.getProperty("detector.phi", "8")),
+                    Double.valueOf(prop.getProperty("detector.revive_phi", "2")),
+                    Integer.valueOf(prop.getProperty("detector.revive_probes", "5")),
+                    Integer.valueOf(prop.getProperty("detector.failures", "3")),
+                    probe_interval, probe_timeout,
+                    Integer.valueOf(prop.getProperty("detector.window", "100")));
+            int partitions = Integer.valueOf(prop.getProperty("partitions", "256"));
+            int vnodes = Integer.valueOf(prop.getProperty("vnodes", "64"));
+            server = new Server(replicationFactor, workers, candidates, port,
+                    worker_port, partitions, vnodes, ackPolicy, client, batchSize, batchLinger,
+                    Integer.valueOf(prop.getProperty("batch.max_bytes", "8388608")),
+                    Integer.valueOf(prop.getProperty("results.timeout_ms", "1000")),
+                    Integer.valueOf(prop.getProperty("results.wait_ms", "1000")),
+                    Integer.valueOf(prop.getProperty("results.refresh_ms", "100")),
+                    Integer.valueOf(prop.getProperty("results.max_age_ms", "3000")),
+                    detector, probe_interval, probe_timeout,
+                    Integer.valueOf(prop.getProperty("recovery.parallelism", "4")),
+                    Boolean.valueOf(prop.getProperty("voters.filter", "true")),
+                    new AdmissionControl(
+                            Integer.valueOf(prop.getProperty("admission.min_limit", "128")),
+                            Integer.valueOf(prop.getProperty("admission.limit", "1024")),
+                            Integer.valueOf(prop.getProperty("admission.queue", "1024")),
+                            Boolean.valueOf(prop.getProperty("admission.adaptive", "true")),
+                            Integer.valueOf(prop.getProperty("admission.retry_after", "1"))),
+                    Threads.isVirtual(prop.getProperty("executor", "pool")), frames,
+                    probe_client, probe_frames);
             server.start();
             Executors.newSingleThreadScheduledExecutor().schedule(() -> {
                 server.stop();
@@ -0,0 +1,81 @@
+/*
+ * Copyright (C) 2016 theofilos
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.thmour.dvote;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Progress of the recovery of one revived worker, its fragments are
+ * resolved concurrently by the recovery pool.
+ *
+ * @author theofilos
+ */
+class RecoveryProgress {
+
+    final int worker;
+    final int fragments;
+    final long started = System.currentTimeMillis();
+    final AtomicInteger resolved = new AtomicInteger();
+    final AtomicInteger failed = new AtomicInteger();
+    final AtomicLong votes = new AtomicLong();
+    private final AtomicInteger answered = new AtomicInteger();
+    private volatile long finished = 0;
+
+    RecoveryProgress(int worker, int fragments) {
+        this.worker = worker;
+        this.fragments = fragments;
+    }
+
+    /**
+     * Records a finished fragment and returns true for the last one.
+     */
+    boolean fragmentDone(boolean ok, long sent) {
+        votes.addAndGet(sent);
+        (ok ? resolved : failed).incrementAndGet();
+        if (answered.incrementAndGet() == fragments) {
+            finished = System.currentTimeMillis();
+            return true;
+        }
+        return false;
+    }
+
+    boolean isDone() {
+        return finished != 0;
+    }
+
+    long elapsed() {
+        return (isDone() ? finished : System.currentTimeMillis()) - started;
+    }
+
+    long votesPerSecond() {
+        return votes.get() * 1000 / Math.max(elapsed(), 1);
+    }
+
+    /**
+     * One line of the /recovery report.
+     */
+    String describe(String host) {
+        return "worker=" + host
+                + " state=" + (isDone() ? "done" : "running")
+                + " fragments=" + answered.get() + "/" + fragments
+                + " failed=" + failed.get()
+                + " votes=" + votes.get()
+                + " elapsed_ms=" + elapsed()
+                + " votes_per_s=" + votesPerSecond();
+    }
+}
@@ -16,23 +16,40 @@
  */
 package com.thmour.dvote;
 
+import com.sun.net.httpserver.Filter;
 import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpHandler;
 import com.sun.net.httpserver.HttpServer;
-import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.InputStream;
 import java.io.OutputStream;
-import java.net.HttpURLConnection;
 import java.net.InetSocketAddress;
-import java.net.URL;
 import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiFunction;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -43,20 +60,75 @@ import java.util.logging.Logger;
 class Server {
 
     private static final Logger LOGGER = Logger.getLogger(Server.class.getName());
+    private static final byte[] VOTE_SUBMITTED = "Vote Submitted".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] PARAMETERS_MISSING = "Parameters missing".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] ALREADY_VOTED = "Already voted".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] UNAVAILABLE = "Service currently unavailable, try again later"
+            .getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] TOO_LARGE = "Batch too large".getBytes(StandardCharsets.US_ASCII);
+    private static final int MAX_VOTE_BODY = 256;
+    private static final int MAX_BATCH_RECORDS = 4096;
 
     private final Object TimestampLock = new Object();
+    private final Object MembershipLock = new Object();
     private final HttpServer server;
     private final int replicationFactor;
     private final int worker_port;
-    private final String[] workers;
-    private final boolean[] available;
-    private final int msg_len = 2 * Short.BYTES + Integer.BYTES + Long.BYTES;
+    private final int vnodes;
+    private final int partitions;
+    private volatile String[] workers;
+    private volatile boolean[] available;
+    private final int msg_len = Protocol.RECORD_LEN;
     private final int msg_resolve_len = 2 * Short.BYTES + 2 * Long.BYTES;
-    private final long[] data_timestamps;
+    private volatile long[] data_timestamps;
+    private volatile HashRing ring;
+    private volatile HashRing next_ring;
+    private final AtomicBoolean resizing = new AtomicBoolean(false);
+    // stores in flight by the parity of the resize epoch they picked their replicas in
+    private final AtomicInteger[] stores_in_flight = {new AtomicInteger(), new AtomicInteger()};
+    private volatile int resize_epoch = 0;
     private final ConcurrentLinkedQueue<DataMiss> data_miss_queue;
     private final ScheduledExecutorService ping_pong;
+    private final ExecutorService prober;
+    private final Set<Integer> probing = ConcurrentHashMap.newKeySet();
+    private final FailureDetector detector;
+    private final int probe_interval;
+    private final int probe_timeout;
     private final ScheduledExecutorService inconsistency;
-    private final int num_workers;
+    private final ExecutorService recovery;
+    private final VoterSet voter_set;
+    private final ConcurrentHashMap<Integer, RecoveryProgress> recoveries = new ConcurrentHashMap<>();
+    private final AckPolicy ackPolicy;
+    private final ExecutorService replicator;
+    private final int batch_max_bytes;
+    private final WorkerClient client;
+    private final FrameClient frames;
+    // probes have connections of their own, so a busy pool cannot make a worker look down
+    private final WorkerClient probe_client;
+    private final FrameClient probe_frames;
+    private final StoreBatcher batcher;
+    private final ExecutorService gather;
+    private final int candidates;
+    private final int results_timeout;
+    private final int results_wait;
+    private final int results_refresh;
+    private final int results_max_age;
+    private final AtomicReferenceArray<Tally> tallies;
+    private final ConcurrentHashMap<Integer, Long> worker_epochs;
+    // one long poll per worker, grown with the ring
+    private final ScheduledThreadPoolExecutor subscriptions;
+    private final ScheduledExecutorService batch_timer;
+    // null on virtual threads, which never live long enough to reuse a buffer
+    private final ThreadLocal<byte[]> request_buffer;
+    private final ArrayBlockingQueue<byte[]> record_pool;
+    private final Metrics metrics = new Metrics();
+    private final Metrics.Histogram[] action_latency = new Metrics.Histogram[WorkerAction.values().length];
+    private final Metrics.Histogram ack_latency;
+    private final Metrics.Histogram gather_latency;
+    private final Metrics.Counter votes_accepted;
+    private final Metrics.Counter votes_duplicate;
+    private final Metrics.Counter votes_invalid;
+    private final Metrics.Counter votes_failed;
 
     private class DataMiss {
 
@@ -71,281 +143,1308 @@ class Server {
         }
     }
 
+    /**
+     * Collects the store replies of one vote and settles the voter's
+     * response code once the ack policy is met. Replies arriving after
+     * that are still counted so the caller can keep its bookkeeping.
+     */
+    private class VoteAck {
+
+        final CompletableFuture<Integer> result = new CompletableFuture<>();
+        final long started = System.nanoTime();
+        private final int required;
+        private final int targets;
+        private final byte[] record;
+        private final AtomicInteger stores;
+        private int acked = 0;
+        private int answered = 0;
+
+        VoteAck(int required, int targets, byte[] record, AtomicInteger stores) {
+            this.required = required;
+            this.targets = targets;
+            this.record = record;
+            this.stores = stores;
+            if (targets == 0 || required > targets) {
+                result.complete(500);
+                record_pool.offer(record);
+                stores.decrementAndGet();
+            }
+        }
+
+        synchronized void reply(int code) {
+            answered++;
+            if (code == 200) {
+                acked++;
+                if (acked >= required) {
+                    result.complete(200);
+                }
+            } else if (code == 400) {
+                result.complete(403);
+            }
+            if (answered == targets) {
+                result.complete(500);
+                // every replica is done with the record
+                record_pool.offer(record);
+                stores.decrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * The last known vote counts of a fragment, as answered by one replica.
+     */
+    private static class Tally {
+
+        final int worker;
+        final long epoch;
+        final long version;
+        final long[] votes;
+        final long checked;
+
+        Tally(int worker, long epoch, long version, long[] votes, long checked) {
+            this.worker = worker;
+            this.epoch = epoch;
+            this.version = version;
+            this.votes = votes;
+            this.checked = checked;
+        }
+    }
+
     private enum WorkerAction {
-        STORE("/store"),
-        RESULTS("/results"),
-        ALIVE("/alive"),
-        RESOLVE("/resolve");
+        STORE("/store", Protocol.OP_STORE, false),
+        RESULTS("/results", Protocol.OP_RESULTS, true),
+        ALIVE("/alive", Protocol.OP_ALIVE, true),
+        RESOLVE("/resolve", Protocol.OP_RESOLVE, false),
+        BATCH_STORE("/batch_store", Protocol.OP_BATCH_STORE, false),
+        MEMBERSHIP("/membership", (byte) 0, true),
+        VOTERS("/voters", (byte) 0, true);
 
         private final String value;
+        // the operation on the binary transport, 0 for http only
+        private final byte op;
+        // safe to send again if a stale connection dropped it
+        private final boolean idempotent;
 
-        WorkerAction(String value) {
+        WorkerAction(String value, byte op, boolean idempotent) {
             this.value = value;
+            this.op = op;
+            this.idempotent = idempotent;
         }
     }
 
-    private String makeURL(int wid, WorkerAction uri) {
-        return "http://" + workers[wid] + ":" + worker_port + uri.value;
-    }
-
     Server(int replicationFactor, String[] workers, int candidates, int port,
-           int worker_port) throws IOException {
-        this.num_workers = workers.length;
-        this.ping_pong = Executors.newSingleThreadScheduledExecutor();
-        this.inconsistency = Executors.newSingleThreadScheduledExecutor();
+           int worker_port, int partitions, int vnodes, AckPolicy ackPolicy, WorkerClient client,
+           int batchSize, long batchLinger, int batch_max_bytes, int results_timeout, int results_wait,
+           int results_refresh, int results_max_age, FailureDetector detector,
+           int probe_interval, int probe_timeout, int recovery_parallelism,
+           boolean voter_filter, AdmissionControl admission, boolean virtual,
+           FrameClient frames, WorkerClient probe_client, FrameClient probe_frames)
+           throws IOException {
+        this.frames = frames;
+        this.batch_max_bytes = batch_max_bytes;
+        this.probe_client = probe_client;
+        this.probe_frames = probe_frames;
+        this.detector = detector;
+        this.voter_set = voter_filter ? new VoterSet() : null;
+        this.probe_interval = probe_interval;
+        this.probe_timeout = probe_timeout;
+        this.prober = Threads.cached(virtual);
+        this.request_buffer = virtual ? null : ThreadLocal.withInitial(() -> new byte[MAX_VOTE_BODY]);
+        this.candidates = candidates;
+        this.results_timeout = results_timeout;
+        this.results_wait = results_wait;
+        this.results_refresh = results_refresh;
+        this.results_max_age = results_max_age;
+        this.partitions = partitions;
+        this.vnodes = vnodes;
+        this.ring = new HashRing(workers, vnodes, partitions, replicationFactor);
+        this.tallies = new AtomicReferenceArray<>(partitions);
+        this.worker_epochs = new ConcurrentHashMap<>();
+        this.subscriptions = Threads.scheduled(virtual, workers.length);
+        this.gather = Threads.cached(virtual);
+        this.client = client;
+        this.ackPolicy = ackPolicy;
+        int threads = Math.max(Runtime.getRuntime().availableProcessors() - 1, 1);
+        this.replicator = Threads.fixed(virtual, threads * replicationFactor);
+        // records stay in flight until their slowest replica answers
+        this.record_pool = new ArrayBlockingQueue<>(threads * replicationFactor * 64);
+        if (batchSize > 1) {
+            this.batch_timer = Threads.scheduled(virtual, 1);
+            this.batcher = new StoreBatcher(batchSize, batchLinger,
+                    msg_len, this::batchStore, replicator, batch_timer);
+        } else {
+            this.batch_timer = null;
+            this.batcher = null;
+        }
+        this.ping_pong = Threads.scheduled(virtual, 1);
+        this.inconsistency = Threads.scheduled(virtual, 1);
+        this.recovery = Executors.newFixedThreadPool(recovery_parallelism);
         this.replicationFactor = replicationFactor;
         this.workers = workers;
         this.worker_port = worker_port;
-        this.data_timestamps = new long[num_workers];
-        this.available = new boolean[num_workers];
+        this.data_timestamps = new long[workers.length];
+        this.available = new boolean[workers.length];
         Arrays.fill(available, true);
         Arrays.fill(data_timestamps, 0L);
         this.data_miss_queue = new ConcurrentLinkedQueue<>();
 
-        HttpHandler mainHandler = (HttpExchange ht) -> {
-            BufferedReader in = new BufferedReader(
-                    new InputStreamReader(ht.getRequestBody()));
-            String query = in.readLine();
+        for (WorkerAction action : WorkerAction.values()) {
+            action_latency[action.ordinal()] = metrics.histogram("dvote_worker_request_seconds",
+                    "Latency of the requests to the workers", Metrics.label("action", action.name().toLowerCase()));
+        }
+        ack_latency = metrics.histogram("dvote_vote_ack_seconds",
+                "Time until a vote met its ack policy", "");
+        gather_latency = metrics.histogram("dvote_results_gather_seconds",
+                "Time spent gathering fragment results for /results", "");
+        String help = "Votes answered by the master, by result";
+        votes_accepted = metrics.counter("dvote_votes_total", help, Metrics.label("result", "accepted"));
+        votes_duplicate = metrics.counter("dvote_votes_total", help, Metrics.label("result", "duplicate"));
+        votes_invalid = metrics.counter("dvote_votes_total", help, Metrics.label("result", "invalid"));
+        votes_failed = metrics.counter("dvote_votes_total", help, Metrics.label("result", "failed"));
+        metrics.gauge("dvote_available_workers", "Workers currently considered available", "", () -> {
+            int count = 0;
+            for (boolean up : available) {
+                count += up ? 1 : 0;
+            }
+            return count;
+        });
+        metrics.gauge("dvote_admission_limit", "Current concurrency limit", "", admission::limit);
+        metrics.gauge("dvote_admission_inflight", "Requests holding a concurrency permit", "",
+                admission::inflight);
+        metrics.gauge("dvote_pending_recoveries", "Revived workers waiting for recovery", "",
+                data_miss_queue::size);
 
-            int voter = -1;
-            short candidate = -1;
-            for (String key_value : query.split("&")) {
-                String[] tmp = key_value.split("=");
-                if ("voter".equals(tmp[0])) {
-                    voter = Integer.valueOf(tmp[1]);
+        HttpHandler mainHandler = (HttpExchange ht) -> {
+            byte[] body = request_buffer != null ? request_buffer.get() : new byte[MAX_VOTE_BODY];
+            int len = 0;
+            try (InputStream in = ht.getRequestBody()) {
+                int read;
+                while (len < body.length && (read = in.read(body, len, body.length - len)) > 0) {
+                    len += read;
                 }
-                if ("candidate".equals(tmp[0])) {
-                    candidate = Short.valueOf(tmp[1]);
+            }
+
+            long voter = VoteForm.field(body, len, VoteForm.VOTER);
+            long candidate = VoteForm.field(body, len, VoteForm.CANDIDATE);
+            if (voter == VoteForm.MISSING || voter == -1
+                    || candidate < 0 || candidate >= candidates) {
+                countVote(400);
+                respond(ht, 400);
+                return;
+            }
+            if (voter_set != null && voter_set.contains((int) voter)) {
+                countVote(403);
+                respond(ht, 403);
+                return;
+            }
+
+            short dataIndex = (short) ring.partition((int) voter);
+            byte[] message = record_pool.poll();
+            if (message == null) {
+                message = new byte[msg_len];
+            }
+            long timestamp = System.currentTimeMillis();
+            Protocol.putRecord(message, 0, dataIndex, (int) voter, (short) candidate, timestamp);
+
+            AtomicInteger stores = enterStore();
+            int[] replicas = storeTargets(dataIndex);
+            int targets = 0;
+            for (int curr : replicas) {
+                if (available[curr]) {
+                    replicas[targets++] = curr;
                 }
             }
 
-            int responseCode = 200;
-            if (voter == -1 || candidate == -1) {
-                responseCode = 400;
-            } else {
-                int replication_index = 0;
-                short dataIndex = (short) (voter % num_workers);
-                ByteBuffer message = ByteBuffer.allocate(msg_len);
-                message.putShort(dataIndex).putInt(voter).putShort(candidate);
-                long timestamp = System.currentTimeMillis();
-                message.putLong(timestamp);
-                int done = 0;
-                while (replication_index < replicationFactor) {
-                    int curr = (dataIndex + replication_index) % num_workers;
-                    if (available[curr]) {
-                        int res = POST(makeURL(curr, WorkerAction.STORE), message.array());
-                        if (res == 200) {
-                            done++;
-                            synchronized (TimestampLock) {
-                                if (timestamp > data_timestamps[curr]) {
-                                    data_timestamps[curr] = timestamp;
-                                }
+            VoteAck ack = new VoteAck(ackPolicy.required(replicationFactor, targets), targets,
+                    message, stores);
+            ack.result.thenAccept(code -> {
+                if (voter_set != null && (code == 200 || code == 403)) {
+                    voter_set.add((int) voter);
+                }
+                if (code == 200) {
+                    ack_latency.since(ack.started);
+                }
+                countVote(code);
+                try {
+                    respond(ht, code);
+                } catch (IOException ex) {
+                    LOGGER.log(Level.WARNING, null, ex);
+                }
+            });
+            if (ack.result.isDone()) {
+                return;
+            }
+            for (int i = 0; i < targets; i++) {
+                int curr = replicas[i];
+                store(curr, message).thenAccept(res -> {
+                    if (res == 200) {
+                        synchronized (TimestampLock) {
+                            if (timestamp > data_timestamps[curr]) {
+                                data_timestamps[curr] = timestamp;
                             }
-                        } else if (res == 400) {
-                            responseCode = 403;
-                            break;
                         }
                     }
-                    replication_index++;
+                    ack.reply(res);
+                });
+            }
+        };
+
+        HttpHandler batchHandler = (HttpExchange ht) -> {
+            byte[] body = readBody(ht, batch_max_bytes);
+            if (body == null) {
+                respond(ht, 413);
+                return;
+            }
+            String type = ht.getRequestHeaders().getFirst("Content-Type");
+            boolean ndjson = type != null && type.contains("ndjson");
+            long[] voters;
+            long[] choices;
+            if (ndjson) {
+                int n = VoteForm.countLines(body, body.length);
+                voters = new long[n];
+                choices = new long[n];
+                VoteForm.parseLines(body, body.length, voters, choices);
+            } else {
+                if (body.length % VoteForm.BATCH_RECORD_LEN != 0) {
+                    respond(ht, 400);
+                    return;
                 }
-                if (done == 0 && responseCode != 403) {
-                    responseCode = 500;
+                ByteBuffer records = ByteBuffer.wrap(body);
+                voters = new long[body.length / VoteForm.BATCH_RECORD_LEN];
+                choices = new long[voters.length];
+                for (int i = 0; i < voters.length; i++) {
+                    voters[i] = records.getInt();
+                    choices[i] = records.getShort();
                 }
             }
-            String message;
-            switch (responseCode) {
-                case 200:
-                    message = "Vote Submitted";
-                    break;
-                case 400:
-                    message = "Parameters missing";
-                    break;
-                case 403:
-                    message = "Already voted";
-                    break;
-                default:
-                    message = "Service currently unavailable, try again later";
-                    break;
+            storeBatch(voters, choices).thenAccept(codes -> {
+                for (int code : codes) {
+                    countVote(code);
+                }
+                try {
+                    respondBatch(ht, codes, ndjson);
+                } catch (IOException ex) {
+                    LOGGER.log(Level.WARNING, null, ex);
+                }
+            });
+        };
+
+        HttpHandler recoveryHandler = (HttpExchange ht) -> {
+            StringBuilder sb = new StringBuilder();
+            recoveries.forEach((wid, progress) ->
+                    sb.append(progress.describe(workers[wid])).append('\n'));
+            byte[] message = sb.toString().getBytes(StandardCharsets.UTF_8);
+            try (OutputStream res = ht.getResponseBody()) {
+                ht.sendResponseHeaders(200, message.length > 0 ? message.length : -1);
+                res.write(message);
+            }
+        };
+
+        HttpHandler resultHandler = (HttpExchange ht) -> {
+            long now = System.currentTimeMillis();
+            HashRing current = ring;
+            List<Integer> stale = new ArrayList<>();
+            for (int data_id = 0; data_id < partitions; data_id++) {
+                Tally tally = tallies.get(data_id);
+                if (tally == null || !available[tally.worker]
+                        || !contains(current.replicas(data_id), tally.worker)
+                        || now - tally.checked > results_max_age) {
+                    stale.add(data_id);
+                }
             }
+            long started = System.nanoTime();
+            int responseCode = gatherResults(stale) ? 200 : 500;
+            gather_latency.since(started);
+            long[] total_votes = new long[candidates];
+            for (int data_id = 0; data_id < partitions && responseCode == 200; data_id++) {
+                long[] votes_fragment = tallies.get(data_id).votes;
+                for (int i = 0; i < candidates; i++) {
+                    total_votes[i] += votes_fragment[i];
+                }
+            }
+            String message = responseCode == 500 ? "DVote down" : Arrays.toString(total_votes);
             try (OutputStream res = ht.getResponseBody()) {
                 ht.sendResponseHeaders(responseCode, message.length());
                 res.write(message.getBytes());
             }
         };
 
-        HttpHandler resultHandler = (HttpExchange ht) -> {
-            int[] total_votes = new int[candidates];
-            Arrays.fill(total_votes, 0);
-
-            int responseCode = 200;
-            for (int data_id = 0; data_id < num_workers; data_id++) {
-                int counter = -1;
-                String vote_fragment_str = null;
-                while (++counter < replicationFactor && vote_fragment_str == null) {
-                    int curr = (data_id + counter) % num_workers;
-                    if (!available[curr]) {
-                        continue;
-                    }
-                    vote_fragment_str = GET(makeURL(curr, WorkerAction.RESULTS),
-                            ByteBuffer.allocate(Integer.BYTES).putInt(data_id).array());
-                }
-                if (vote_fragment_str != null) {
-                    int[] votes_fragment = fromString(vote_fragment_str);
-                    for (int i = 0; i < candidates; i++) {
-                        total_votes[i] += votes_fragment[i];
-                    }
+        HttpHandler adminHandler = (HttpExchange ht) -> {
+            String query = new String(readBody(ht), StandardCharsets.UTF_8).trim();
+            int responseCode = 400;
+            String message = "Expected add=<host> or remove=<host>";
+            String[] tmp = query.split("=", 2);
+            if (tmp.length == 2 && !tmp[1].isEmpty()
+                    && ("add".equals(tmp[0]) || "remove".equals(tmp[0]))) {
+                if (!resizing.compareAndSet(false, true)) {
+                    responseCode = 409;
+                    message = "Another resize is in progress";
                 } else {
-                    LOGGER.log(Level.SEVERE, "{0} servers down in a row, "
-                            + " please increase replication factor", replicationFactor);
-                    responseCode = 500;
+                    try {
+                        boolean add = "add".equals(tmp[0]);
+                        String[] members = add ? addMember(tmp[1]) : removeMember(tmp[1]);
+                        if (members == null) {
+                            responseCode = 404;
+                            message = "Unknown worker " + tmp[1];
+                        } else if (resize(members)) {
+                            responseCode = 200;
+                            message = "OK";
+                        } else {
+                            responseCode = 500;
+                            message = "Partition transfer failed, ring unchanged";
+                        }
+                    } finally {
+                        resizing.set(false);
+                    }
                 }
             }
-            String message = responseCode == 500 ? "DVote down" : Arrays.toString(total_votes);
             try (OutputStream res = ht.getResponseBody()) {
                 ht.sendResponseHeaders(responseCode, message.length());
                 res.write(message.getBytes());
             }
         };
 
-        int threads = Math.max(Runtime.getRuntime().availableProcessors() - 1, 1);
-        ExecutorService es = Executors.newFixedThreadPool(threads);
+        Executor es = admission.executor(threads, virtual);
         server = HttpServer.create(new InetSocketAddress(port), 0);
         server.setExecutor(es);
-        server.createContext("/vote", mainHandler);
-        server.createContext("/results", resultHandler);
+        context("/vote", mainHandler, admission.limitFilter());
+        context("/vote/batch", batchHandler, admission.limitFilter());
+        context("/results", resultHandler, admission.overflowFilter());
+        context("/admin/workers", adminHandler, admission.overflowFilter());
+        context("/recovery", recoveryHandler, admission.overflowFilter());
+        context("/metrics", metrics.handler(), admission.overflowFilter());
         LOGGER.log(Level.INFO, "Server ready at {0}", String.valueOf(port));
     }
 
-    private int POST(String url_str, byte[] message) {
+    /**
+     * Creates a context whose requests are timed, including the ones
+     * rejected by its admission filter.
+     */
+    private void context(String path, HttpHandler handler, Filter admission) {
+        List<Filter> filters = server.createContext(path, handler).getFilters();
+        filters.add(metrics.timer(metrics.histogram("dvote_http_request_seconds",
+                "Latency of the http handlers", Metrics.label("handler", path))));
+        filters.add(admission);
+    }
+
+    private void countVote(int code) {
+        switch (code) {
+            case 200:
+                votes_accepted.inc();
+                break;
+            case 400:
+                votes_invalid.inc();
+                break;
+            case 403:
+                votes_duplicate.inc();
+                break;
+            default:
+                votes_failed.inc();
+                break;
+        }
+    }
+
+    private void respond(HttpExchange ht, int responseCode) throws IOException {
+        byte[] message;
+        switch (responseCode) {
+            case 200:
+                message = VOTE_SUBMITTED;
+                break;
+            case 400:
+                message = PARAMETERS_MISSING;
+                break;
+            case 403:
+                message = ALREADY_VOTED;
+                break;
+            case 413:
+                message = TOO_LARGE;
+                break;
+            default:
+                message = UNAVAILABLE;
+                break;
+        }
+        try (OutputStream res = ht.getResponseBody()) {
+            ht.sendResponseHeaders(responseCode, message.length);
+            res.write(message);
+        }
+    }
+
+    /**
+     * Stores a batch of votes with one /batch_store frame per worker (split
+     * at MAX_BATCH_RECORDS), and completes with the code every vote would
+     * have got from /vote.
+     */
+    private CompletableFuture<int[]> storeBatch(long[] voters, long[] choices) {
+        int n = voters.length;
+        int[] codes = new int[n];
+        int[] required = new int[n];
+        int[] acked = new int[n];
+        boolean[] exists = new boolean[n];
+        int[][] vote_targets = new int[n][];
+        int[] counts = new int[workers.length];
+        long timestamp = System.currentTimeMillis();
+        AtomicInteger stores = enterStore();
+
+        for (int i = 0; i < n; i++) {
+            if (voters[i] == VoteForm.MISSING || voters[i] == -1
+                    || choices[i] < 0 || choices[i] >= candidates) {
+                codes[i] = 400;
+                continue;
+            }
+            if (voter_set != null && voter_set.contains((int) voters[i])) {
+                codes[i] = 403;
+                continue;
+            }
+            int[] replicas = storeTargets(ring.partition((int) voters[i]));
+            int targets = 0;
+            for (int curr : replicas) {
+                if (curr < available.length && available[curr]) {
+                    replicas[targets++] = curr;
+                }
+            }
+            required[i] = ackPolicy.required(replicationFactor, targets);
+            if (targets == 0 || required[i] > targets) {
+                codes[i] = 500;
+                continue;
+            }
+            vote_targets[i] = Arrays.copyOf(replicas, targets);
+            for (int curr : vote_targets[i]) {
+                if (curr >= counts.length) {
+                    counts = Arrays.copyOf(counts, curr + 1);
+                }
+                counts[curr]++;
+            }
+        }
+
+        int[][] by_worker = new int[counts.length][];
+        for (int wid = 0; wid < counts.length; wid++) {
+            by_worker[wid] = new int[counts[wid]];
+            counts[wid] = 0;
+        }
+        for (int i = 0; i < n; i++) {
+            if (vote_targets[i] != null) {
+                for (int curr : vote_targets[i]) {
+                    by_worker[curr][counts[curr]++] = i;
+                }
+            }
+        }
+
+        List<CompletableFuture<Void>> sent = new ArrayList<>();
+        for (int worker = 0; worker < by_worker.length; worker++) {
+            int wid = worker;
+            int[] votes = by_worker[wid];
+            for (int from = 0; from < votes.length; from += MAX_BATCH_RECORDS) {
+                int[] chunk = Arrays.copyOfRange(votes, from,
+                        Math.min(from + MAX_BATCH_RECORDS, votes.length));
+                byte[] frame = new byte[chunk.length * msg_len];
+                for (int j = 0; j < chunk.length; j++) {
+                    int vote = chunk[j];
+                    Protocol.putRecord(frame, j * msg_len, (short) ring.partition((int) voters[vote]),
+                            (int) voters[vote], (short) choices[vote], timestamp);
+                }
+                sent.add(CompletableFuture.supplyAsync(() -> batchStore(wid, frame), replicator)
+                        .thenAccept(status -> {
+                            boolean stored = false;
+                            synchronized (acked) {
+                                for (int j = 0; j < chunk.length; j++) {
+                                    int code = status == null || status.length <= j
+                                            ? 500 : Protocol.statusCode(status[j]);
+                                    if (code == 200) {
+                                        acked[chunk[j]]++;
+                                        stored = true;
+                                    } else if (code == 400) {
+                                        exists[chunk[j]] = true;
+                                    }
+                                }
+                            }
+                            if (stored) {
+                                synchronized (TimestampLock) {
+                                    if (timestamp > data_timestamps[wid]) {
+                                        data_timestamps[wid] = timestamp;
+                                    }
+                                }
+                            }
+                        }));
+            }
+        }
+
+        CompletableFuture<Void> all = CompletableFuture.allOf(sent.toArray(new CompletableFuture[0]));
+        all.whenComplete((done, ex) -> stores.decrementAndGet());
+        return all.thenApply(done -> {
+            synchronized (acked) {
+                for (int i = 0; i < n; i++) {
+                    if (vote_targets[i] == null) {
+                        continue;
+                    }
+                    // a repeat voter is answered first, as /vote does
+                    codes[i] = exists[i] ? 403 : acked[i] >= required[i] ? 200 : 500;
+                    if (voter_set != null && codes[i] != 500) {
+                        voter_set.add((int) voters[i]);
+                    }
+                }
+            }
+            return codes;
+        });
+    }
+
+    /**
+     * Writes the per-vote codes of a /vote/batch request, as a JSON array
+     * for NDJSON requests or as big-endian shorts otherwise.
+     */
+    private static void respondBatch(HttpExchange ht, int[] codes, boolean ndjson)
+            throws IOException {
+        byte[] message;
+        if (ndjson) {
+            StringBuilder sb = new StringBuilder(codes.length * 4 + 2).append('[');
+            for (int i = 0; i < codes.length; i++) {
+                sb.append(i == 0 ? "" : ",").append(codes[i]);
+            }
+            message = sb.append(']').toString().getBytes(StandardCharsets.US_ASCII);
+            ht.getResponseHeaders().set("Content-Type", "application/json");
+        } else {
+            ByteBuffer body = ByteBuffer.allocate(codes.length * Short.BYTES);
+            for (int code : codes) {
+                body.putShort((short) code);
+            }
+            message = body.array();
+            ht.getResponseHeaders().set("Content-Type", "application/octet-stream");
+        }
+        try (OutputStream res = ht.getResponseBody()) {
+            ht.sendResponseHeaders(200, message.length);
+            res.write(message);
+        }
+    }
+
+    private CompletableFuture<Integer> store(int wid, byte[] message) {
+        if (batcher != null) {
+            return batcher.submit(wid, message);
+        }
+        if (frames != null) {
+            // pipelined on the worker's connection, no thread waits for it
+            long started = System.nanoTime();
+            return frames.send(workers[wid], worker_port, Protocol.OP_STORE, message)
+                    .handle((res, ex) -> {
+                        action_latency[WorkerAction.STORE.ordinal()].since(started);
+                        if (ex != null) {
+                            LOGGER.log(Level.SEVERE, null, ex);
+                            suspect(wid);
+                            return 500;
+                        }
+                        detector.success(wid);
+                        return res.status;
+                    });
+        }
+        return CompletableFuture.supplyAsync(
+                () -> POST(wid, WorkerAction.STORE, message), replicator);
+    }
+
+    /**
+     * Sends a request to a worker over the binary transport when it is
+     * enabled and carries the action, or else over http.
+     */
+    private WorkerClient.Response send(int wid, WorkerAction action, byte[] message,
+            int timeout) throws IOException {
+        long started = System.nanoTime();
+        try {
+            if (frames != null && action.op != 0) {
+                return frames.call(workers[wid], worker_port, action.op, message, timeout);
+            }
+            return client.post(workers[wid], worker_port, action.value, message, timeout,
+                    action.idempotent);
+        } finally {
+            action_latency[action.ordinal()].since(started);
+        }
+    }
+
+    private WorkerClient.Response send(int wid, WorkerAction action, byte[] message)
+            throws IOException {
+        long started = System.nanoTime();
+        try {
+            if (frames != null && action.op != 0) {
+                return frames.call(workers[wid], worker_port, action.op, message);
+            }
+            return client.post(workers[wid], worker_port, action.value, message,
+                    action.idempotent);
+        } finally {
+            action_latency[action.ordinal()].since(started);
+        }
+    }
+
+    private byte[] batchStore(int wid, byte[] frame) {
+        try {
+            WorkerClient.Response res = send(wid, WorkerAction.BATCH_STORE, frame);
+            detector.success(wid);
+            if (res.status == 200 || res.status == 507) {
+                return res.body;
+            }
+        } catch (IOException ex) {
+            LOGGER.log(Level.SEVERE, null, ex);
+            suspect(wid);
+        }
+        return null;
+    }
+
+    private int POST(int wid, WorkerAction action, byte[] message) {
         try {
-            URL url = new URL(url_str);
-            HttpURLConnection con = (HttpURLConnection) url.openConnection();
-            con.setDoOutput(true);
-            con.setUseCaches(false);
-            con.setRequestMethod("POST");
-            con.setRequestProperty("Content-Length", String.valueOf(message.length));
-            con.setRequestProperty("Content-Type", "default/binary");
-            try (OutputStream out = con.getOutputStream()) {
-                out.write(message);
-                out.flush();
-            }
-
-            return con.getResponseCode();
-        } catch (Exception ex) {
-            Logger.getLogger(Server.class.getName()).log(Level.SEVERE, null, ex);
+            int status = send(wid, action, message).status;
+            detector.success(wid);
+            return status;
+        } catch (IOException ex) {
+            LOGGER.log(Level.SEVERE, null, ex);
+            suspect(wid);
         }
         return 500;
     }
 
-    private String GET(String url_str, byte[] message) {
+    /**
+     * Sends one /alive probe. A reply is a heartbeat, and brings the worker
+     * back once it answered enough probes in a row with a low suspicion
+     * level.
+     */
+    private void probe(int wid) {
+        try {
+            WorkerClient.Response res;
+            long started = System.nanoTime();
+            try {
+                res = probe_frames != null
+                        ? probe_frames.call(workers[wid], worker_port, Protocol.OP_ALIVE, null,
+                                probe_timeout)
+                        : probe_client.post(workers[wid], worker_port,
+                                WorkerAction.ALIVE.value, null, probe_timeout, true);
+            } finally {
+                action_latency[WorkerAction.ALIVE.ordinal()].since(started);
+            }
+            if (res.status == 200) {
+                detector.heartbeat(wid);
+                if (!available[wid] && detector.isRecovered(wid)) {
+                    revive(wid);
+                }
+                return;
+            }
+        } catch (IOException ex) {
+            // counted as a failure below
+        }
+        suspect(wid);
+    }
+
+    private void suspect(int wid) {
+        detector.failure(wid);
+        if (available[wid] && detector.isSuspected(wid)) {
+            markDown(wid);
+        }
+    }
+
+    private void markDown(int wid) {
+        synchronized (MembershipLock) {
+            if (!available[wid]) {
+                return;
+            }
+            available[wid] = false;
+        }
+        flipped(wid, "down");
+        LOGGER.log(Level.WARNING, "Worker {0} suspected", workers[wid]);
+    }
+
+    /**
+     * Counts an availability change of a worker. Flips are rare, so the
+     * counter is looked up every time rather than kept per worker.
+     */
+    private void flipped(int wid, String state) {
+        metrics.counter("dvote_worker_availability_changes_total",
+                "Availability changes of the workers",
+                Metrics.label("worker", workers[wid]) + "," + Metrics.label("state", state)).inc();
+    }
+
+    private void revive(int wid) {
+        HashRing current = ring;
+        HashRing pending = next_ring;
+        pushMembership(wid, (pending != null ? pending : current).members());
+        synchronized (MembershipLock) {
+            if (available[wid]) {
+                return;
+            }
+            available[wid] = true;
+        }
+        flipped(wid, "up");
+        LOGGER.log(Level.INFO, "Worker {0} available", workers[wid]);
+        long max_timestamp = 0;
+        synchronized (TimestampLock) {
+            for (int curr_worker : peers(current, wid)) {
+                if (data_timestamps[curr_worker] > max_timestamp) {
+                    max_timestamp = data_timestamps[curr_worker];
+                }
+            }
+        }
+        if (max_timestamp > data_timestamps[wid]) {
+            data_miss_queue.add(new DataMiss(wid, data_timestamps[wid], max_timestamp));
+        }
+    }
+
+    /**
+     * Resolves the fragments of a revived worker on the recovery pool, so
+     * several workers and fragments recover at the same time.
+     */
+    private void recover(DataMiss dm) {
+        HashRing current = ring;
+        int[] fragments = current.partitionsOf(dm.worker);
+        if (fragments.length == 0) {
+            return;
+        }
+        RecoveryProgress progress = new RecoveryProgress(dm.worker, fragments.length);
+        recoveries.put(dm.worker, progress);
+        for (int fragment : fragments) {
+            int data_id = fragment;
+            recovery.execute(() -> {
+                long[] resolved = null;
+                for (int curr_worker : current.replicas(data_id)) {
+                    if (!available[curr_worker] || curr_worker == dm.worker) {
+                        continue;
+                    }
+                    // /resolve leaves its bounds out, widened so that the votes
+                    // stamped on them are sent too, the worker refuses the ones it has
+                    byte[] message = ByteBuffer.allocate(msg_resolve_len)
+                            .putShort((short) dm.worker)
+                            .putShort((short) data_id)
+                            .putLong(dm.start - 1).putLong(dm.end + 1)
+                            .array();
+                    if ((resolved = resolve(curr_worker, message)) != null) {
+                        break;
+                    }
+                }
+                long sent = resolved == null ? -1 : resolved[0];
+                if (sent < 0) {
+                    LOGGER.log(Level.SEVERE, "Inconsistency encountered,"
+                            + " please increase replication factor");
+                }
+                if (progress.fragmentDone(sent >= 0, Math.max(sent, 0))) {
+                    LOGGER.log(Level.INFO, "Recovery of worker {0}: {1} votes in {2} ms ({3} votes/s)",
+                            new Object[]{workers[dm.worker], progress.votes.get(),
+                                progress.elapsed(), progress.votesPerSecond()});
+                }
+            });
+        }
+    }
+
+    /**
+     * Asks a replica to stream the votes of a fragment to another worker,
+     * returns the number of votes sent and the newest timestamp among them
+     * (Long.MIN_VALUE for none), or null if the resolve failed.
+     */
+    private long[] resolve(int wid, byte[] message) {
         try {
-            URL url = new URL(url_str);
-            HttpURLConnection con = (HttpURLConnection) url.openConnection();
-            con.setUseCaches(false);
-            con.setRequestMethod("POST");
-            if (message != null) {
-                con.setDoOutput(true);
-                con.getOutputStream().write(message);
-                con.getOutputStream().close();
-            }
-            if (con.getResponseCode() != 200) {
+            WorkerClient.Response res = send(wid, WorkerAction.RESOLVE, message);
+            detector.success(wid);
+            if (res.status != 200) {
                 return null;
             }
-            try (BufferedReader in = new BufferedReader(
-                    new InputStreamReader(con.getInputStream()))) {
-                String inputLine;
-                StringBuilder response = new StringBuilder();
+            ByteBuffer body = ByteBuffer.wrap(res.body);
+            return new long[]{body.remaining() >= Long.BYTES ? body.getLong() : 0,
+                body.remaining() >= Long.BYTES ? body.getLong() : Long.MIN_VALUE};
+        } catch (IOException ex) {
+            LOGGER.log(Level.SEVERE, null, ex);
+            suspect(wid);
+        }
+        return null;
+    }
+
+    /**
+     * Orders replicas by suspicion level, keeping the ring order among
+     * workers that are equally trusted.
+     */
+    private int[] bySuspicion(int[] replicas) {
+        Integer[] order = new Integer[replicas.length];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = replicas[i];
+        }
+        Arrays.sort(order, Comparator.comparingInt(wid -> (int) Math.min(detector.phi(wid), 100)));
+        int[] sorted = new int[order.length];
+        for (int i = 0; i < order.length; i++) {
+            sorted[i] = order[i];
+        }
+        return sorted;
+    }
+
+    /**
+     * Scatters the fragment queries over the first available replica of
+     * every fragment, one request per worker, and refreshes their tallies.
+     * The fragments of a worker that fails or times out are asked again
+     * from their next replica in the ring.
+     */
+    private boolean gatherResults(List<Integer> remaining) {
+        return gatherFragments(remaining, (wid, fragments) -> fetchResults(wid, fragments, 0));
+    }
+
+    /**
+     * Runs {@code fetch} for every fragment on its first available replica,
+     * one call per worker, and retries the fragments of a failed call on
+     * their next replica.
+     */
+    private boolean gatherFragments(List<Integer> remaining,
+            BiFunction<Integer, List<Integer>, Boolean> fetch) {
+        HashRing current = ring;
+        int[] counter = new int[partitions];
+        boolean complete = true;
+        while (!remaining.isEmpty()) {
+            Map<Integer, List<Integer>> requests = new HashMap<>();
+            for (int data_id : remaining) {
+                int[] replicas = bySuspicion(current.replicas(data_id));
+                int curr = -1;
+                while (counter[data_id] < replicas.length) {
+                    int candidate = replicas[counter[data_id]];
+                    if (available[candidate]) {
+                        curr = candidate;
+                        break;
+                    }
+                    counter[data_id]++;
+                }
+                if (curr == -1) {
+                    LOGGER.log(Level.SEVERE, "{0} servers down in a row, "
+                            + " please increase replication factor", replicationFactor);
+                    complete = false;
+                } else {
+                    requests.computeIfAbsent(curr, k -> new ArrayList<>()).add(data_id);
+                }
+            }
+            Map<Integer, Future<Boolean>> replies = new HashMap<>();
+            requests.forEach((wid, fragments) -> replies.put(wid,
+                    gather.submit(() -> fetch.apply(wid, fragments))));
+
+            remaining = new ArrayList<>();
+            for (Map.Entry<Integer, Future<Boolean>> reply : replies.entrySet()) {
+                boolean done = false;
+                try {
+                    done = reply.getValue().get();
+                } catch (InterruptedException | ExecutionException ex) {
+                    LOGGER.log(Level.WARNING, null, ex);
+                }
+                if (!done) {
+                    for (int data_id : requests.get(reply.getKey())) {
+                        counter[data_id]++;
+                        remaining.add(data_id);
+                    }
+                }
+            }
+        }
+        return complete;
+    }
+
+    /**
+     * Fills the voter set with the voters every fragment already holds.
+     */
+    private void warmVoters() {
+        long t1 = System.currentTimeMillis();
+        List<Integer> fragments = new ArrayList<>();
+        for (int data_id = 0; data_id < partitions; data_id++) {
+            fragments.add(data_id);
+        }
+        boolean complete = gatherFragments(fragments, this::fetchVoters);
+        LOGGER.log(Level.INFO, "Voter set warmed in {0} ms{1}", new Object[]{
+            System.currentTimeMillis() - t1, complete ? "" : ", some fragments unavailable"});
+    }
+
+    private boolean fetchVoters(int wid, List<Integer> fragments) {
+        ByteBuffer request = ByteBuffer.allocate(Short.BYTES * (fragments.size() + 1))
+                .putShort((short) fragments.size());
+        fragments.forEach(data_id -> request.putShort(data_id.shortValue()));
+        try {
+            WorkerClient.Response res = send(wid, WorkerAction.VOTERS, request.array());
+            detector.success(wid);
+            if (res.status != 200) {
+                return false;
+            }
+            ByteBuffer body = ByteBuffer.wrap(res.body);
+            while (body.remaining() >= Integer.BYTES) {
+                voter_set.add(body.getInt());
+            }
+            return true;
+        } catch (IOException ex) {
+            LOGGER.log(Level.WARNING, null, ex);
+            suspect(wid);
+        }
+        return false;
+    }
+
+    /**
+     * Asks a worker for the fragments whose version differs from the
+     * cached tally. With {@code wait > 0} the worker holds the request
+     * until one of them changes or the wait expires.
+     */
+    private boolean fetchResults(int wid, List<Integer> fragments, int wait) {
+        long epoch = worker_epochs.getOrDefault(wid, 0L);
+        long[] known = new long[fragments.size()];
+        ByteBuffer request = ByteBuffer.allocate(Short.BYTES + Integer.BYTES + Long.BYTES
+                + fragments.size() * (Short.BYTES + Long.BYTES));
+        request.putShort((short) fragments.size()).putInt(wait).putLong(epoch);
+        for (int f = 0; f < known.length; f++) {
+            Tally tally = tallies.get(fragments.get(f));
+            known[f] = tally != null && tally.worker == wid && tally.epoch == epoch
+                    ? tally.version : -1;
+            request.putShort(fragments.get(f).shortValue()).putLong(known[f]);
+        }
+        try {
+            WorkerClient.Response res = send(wid, WorkerAction.RESULTS, request.array(),
+                    wait + results_timeout);
+            detector.success(wid);
+            if (res.status != 200) {
+                return false;
+            }
+            ByteBuffer body = ByteBuffer.wrap(res.body);
+            long worker_epoch = body.getLong();
+            long now = System.currentTimeMillis();
+            for (int f = 0; f < known.length; f++) {
+                int data_id = fragments.get(f);
+                long version = body.getLong();
+                long[] votes_fragment;
+                if (worker_epoch != epoch || version != known[f]) {
+                    votes_fragment = new long[candidates];
+                    for (int i = 0; i < candidates; i++) {
+                        votes_fragment[i] = body.getLong();
+                    }
+                } else {
+                    votes_fragment = tallies.get(data_id).votes;
+                }
+                tallies.set(data_id, new Tally(wid, worker_epoch, version,
+                        votes_fragment, now));
+            }
+            worker_epochs.put(wid, worker_epoch);
+            return true;
+        } catch (IOException ex) {
+            LOGGER.log(Level.WARNING, null, ex);
+            suspect(wid);
+        } catch (RuntimeException ex) {
+            LOGGER.log(Level.WARNING, null, ex);
+        }
+        return false;
+    }
+
+    /**
+     * Keeps a long poll open on a worker for the fragments it is the
+     * first available replica of, so /results can answer from the tallies.
+     */
+    private void subscribe(int wid) {
+        HashRing current = ring;
+        if (!current.isMember(wid) || !available[wid]) {
+            return;
+        }
+        List<Integer> fragments = new ArrayList<>();
+        for (int data_id = 0; data_id < partitions; data_id++) {
+            for (int curr : current.replicas(data_id)) {
+                if (available[curr]) {
+                    if (curr == wid) {
+                        fragments.add(data_id);
+                    }
+                    break;
+                }
+            }
+        }
+        if (!fragments.isEmpty()) {
+            fetchResults(wid, fragments, results_wait);
+        }
+    }
+
+    /**
+     * The replicas a vote of a partition is stored to. While a resize is
+     * streaming partitions, the new owners get the live writes as well.
+     */
+    private int[] storeTargets(int data_id) {
+        // the pending ring first, it is cleared only after the ring is swapped
+        HashRing pending = next_ring;
+        int[] replicas = ring.replicas(data_id);
+        if (pending == null) {
+            return replicas.clone();
+        }
+        int[] extra = pending.replicas(data_id);
+        int[] targets = Arrays.copyOf(replicas, replicas.length + extra.length);
+        int count = replicas.length;
+        for (int wid : extra) {
+            if (!contains(replicas, wid)) {
+                targets[count++] = wid;
+            }
+        }
+        return Arrays.copyOf(targets, count);
+    }
+
+    /**
+     * Counts a store in flight in the current resize epoch, before it picks
+     * its replicas. The returned counter is released once every replica
+     * answered.
+     */
+    private AtomicInteger enterStore() {
+        while (true) {
+            int epoch = resize_epoch;
+            AtomicInteger stores = stores_in_flight[epoch & 1];
+            stores.incrementAndGet();
+            if (resize_epoch == epoch) {
+                return stores;
+            }
+            stores.decrementAndGet();
+        }
+    }
 
-                while ((inputLine = in.readLine()) != null) {
-                    response.append(inputLine);
+    /**
+     * Starts a new resize epoch and waits for the stores of the previous
+     * one, which may have picked their replicas before the new owners were
+     * known and would land behind the partition streams.
+     */
+    private void fenceStores() {
+        AtomicInteger stores = stores_in_flight[resize_epoch & 1];
+        resize_epoch++;
+        while (stores.get() > 0) {
+            try {
+                Thread.sleep(1);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * The workers sharing at least one partition with a worker.
+     */
+    private static int[] peers(HashRing current, int wid) {
+        boolean[] seen = new boolean[current.members().length];
+        int[] peers = new int[seen.length];
+        int count = 0;
+        for (int data_id : current.partitionsOf(wid)) {
+            for (int curr : current.replicas(data_id)) {
+                if (!seen[curr]) {
+                    seen[curr] = true;
+                    peers[count++] = curr;
                 }
-                return response.toString();
             }
-        } catch (Exception ex) {
-            //logger.log(Level.SEVERE, null, ex);
+        }
+        return Arrays.copyOf(peers, count);
+    }
+
+    private static boolean contains(int[] array, int value) {
+        for (int element : array) {
+            if (element == value) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private String[] addMember(String host) {
+        String[] members = ring.members();
+        for (int wid = 0; wid < members.length; wid++) {
+            if (host.equals(members[wid])) {
+                return members;
+            }
+        }
+        members = Arrays.copyOf(members, members.length + 1);
+        members[members.length - 1] = host;
+        return members;
+    }
+
+    private String[] removeMember(String host) {
+        String[] members = ring.members();
+        for (int wid = 0; wid < members.length; wid++) {
+            if (host.equals(members[wid])) {
+                members[wid] = null;
+                return members;
+            }
         }
         return null;
     }
 
-    private static int[] fromString(String string) {
-        String[] strings = string.split(",");
-        int result[] = new int[strings.length];
-        for (int i = 0; i < result.length; i++) {
-            result[i] = Integer.parseInt(strings[i]);
+    /**
+     * Moves the cluster to a new member list while votes keep coming. New
+     * partition owners receive the live writes right away, and once the
+     * stores sent with the old ring alone are answered the rest of their
+     * partitions is streamed from a current replica, then the new ring
+     * replaces the old one.
+     */
+    private boolean resize(String[] members) {
+        HashRing target = new HashRing(members, vnodes, partitions, replicationFactor);
+        synchronized (MembershipLock) {
+            if (members.length > workers.length) {
+                boolean[] grown = Arrays.copyOf(available, members.length);
+                for (int wid = workers.length; wid < members.length; wid++) {
+                    grown[wid] = true;
+                }
+                workers = Arrays.copyOf(members, members.length);
+                available = grown;
+                subscriptions.setCorePoolSize(members.length);
+                synchronized (TimestampLock) {
+                    data_timestamps = Arrays.copyOf(data_timestamps, members.length);
+                }
+                for (int wid = ring.members().length; wid < members.length; wid++) {
+                    int added = wid;
+                    if (results_refresh > 0) {
+                        subscriptions.scheduleWithFixedDelay(() -> subscribe(added),
+                                0, results_refresh, TimeUnit.MILLISECONDS);
+                    }
+                }
+            }
+        }
+        next_ring = target;
+        fenceStores();
+        for (int wid = 0; wid < members.length; wid++) {
+            if (ring.isMember(wid) || target.isMember(wid)) {
+                pushMembership(wid, members);
+            }
+        }
+
+        long t1 = System.currentTimeMillis();
+        int moved = 0;
+        boolean done = true;
+        // the newest vote streamed to every new owner
+        long[] received = new long[members.length];
+        Arrays.fill(received, Long.MIN_VALUE);
+        for (int data_id = 0; data_id < partitions; data_id++) {
+            int[] replicas = ring.replicas(data_id);
+            for (int owner : target.replicas(data_id)) {
+                if (contains(replicas, owner)) {
+                    continue;
+                }
+                // every vote, none is stamped on the bounds /resolve leaves out
+                byte[] message = ByteBuffer.allocate(msg_resolve_len)
+                        .putShort((short) owner)
+                        .putShort((short) data_id)
+                        .putLong(Long.MIN_VALUE).putLong(Long.MAX_VALUE)
+                        .array();
+                boolean streamed = false;
+                for (int curr : replicas) {
+                    long[] resolved = available[curr] ? resolve(curr, message) : null;
+                    if (resolved != null) {
+                        received[owner] = Math.max(received[owner], resolved[1]);
+                        streamed = true;
+                        break;
+                    }
+                }
+                done &= streamed;
+                moved++;
+            }
+        }
+        if (done) {
+            ring = target;
+            // only the owners that received votes move, and only as far as those votes
+            synchronized (TimestampLock) {
+                for (int wid = 0; wid < members.length; wid++) {
+                    if (target.isMember(wid) && received[wid] > data_timestamps[wid]) {
+                        data_timestamps[wid] = received[wid];
+                    }
+                }
+            }
+            synchronized (MembershipLock) {
+                for (int wid = 0; wid < members.length; wid++) {
+                    if (!target.isMember(wid)) {
+                        available[wid] = false;
+                    }
+                }
+            }
+        }
+        next_ring = null;
+        LOGGER.log(Level.INFO, "Resize to {0} {1}, {2} partition replicas moved in {3} ms",
+                new Object[]{Arrays.toString(members), done ? "done" : "failed",
+                    moved, System.currentTimeMillis() - t1});
+        return done;
+    }
+
+    private void pushMembership(int wid, String[] members) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < members.length; i++) {
+            if (i > 0) {
+                sb.append(",");
+            }
+            if (members[i] != null) {
+                sb.append(members[i]);
+            }
+        }
+        POST(wid, WorkerAction.MEMBERSHIP, sb.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static byte[] readBody(HttpExchange ht) throws IOException {
+        return readBody(ht, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Reads a request body, or returns null once it is longer than
+     * {@code limit} bytes.
+     */
+    private static byte[] readBody(HttpExchange ht, int limit) throws IOException {
+        String length = ht.getRequestHeaders().getFirst("Content-Length");
+        if (length != null && Long.parseLong(length.trim()) > limit) {
+            return null;
+        }
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int read;
+        try (InputStream input = ht.getRequestBody()) {
+            while ((read = input.read(buffer)) != -1) {
+                if (body.size() + read > limit) {
+                    return null;
+                }
+                body.write(buffer, 0, read);
+            }
         }
-        return result;
+        return body.toByteArray();
     }
 
     void start() {
         ping_pong.scheduleAtFixedRate(() -> {
-            for (int workerID = 0; workerID < num_workers; workerID++) {
-                if (GET(makeURL(workerID, WorkerAction.ALIVE), null) != null) {
-                    if (!available[workerID]) {
-                        available[workerID] = true;
-                        long max_timestamp = 0;
-                        synchronized (TimestampLock) {
-                            int init = (workerID - replicationFactor + 1);
-                            int len = 2 * replicationFactor - 1;
-                            for (int i = 0; i < len; i++) {
-                                int curr_worker = (init + i) >= 0 ? (init + i)
-                                        % num_workers : init + i + num_workers;
-                                if (data_timestamps[curr_worker] > max_timestamp) {
-                                    max_timestamp = data_timestamps[curr_worker];
-                                }
-                            }
-                        }
-                        if (max_timestamp > data_timestamps[workerID]) {
-                            data_miss_queue.add(new DataMiss(workerID,
-                                    data_timestamps[workerID], max_timestamp));
+            HashRing current = ring;
+            HashRing pending = next_ring;
+            for (int workerID = 0; workerID < workers.length; workerID++) {
+                int wid = workerID;
+                if (!current.isMember(wid)
+                        && (pending == null || !pending.isMember(wid))) {
+                    continue;
+                }
+                if (available[wid] && detector.isSuspected(wid)) {
+                    markDown(wid);
+                }
+                if (probing.add(wid)) {
+                    prober.execute(() -> {
+                        try {
+                            probe(wid);
+                        } finally {
+                            probing.remove(wid);
                         }
-                    }
-                } else {
-                    available[workerID] = false;
+                    });
                 }
             }
-        }, 0, 1, TimeUnit.SECONDS);
+        }, 0, probe_interval, TimeUnit.MILLISECONDS);
         if (replicationFactor > 1) {
             inconsistency.scheduleWithFixedDelay(() -> {
                 DataMiss dm;
                 while ((dm = data_miss_queue.poll()) != null) {
-                    long t1 = System.currentTimeMillis();
-                    for (int replica = 0; replica < replicationFactor; replica++) {
-                        int data_id = dm.worker - replica;
-                        if (data_id < 0) {
-                            data_id += num_workers;
-                        }
-                        boolean done = false;
-                        for (int i = data_id; i < replicationFactor; i++) {
-                            int curr_worker = (data_id + i) % num_workers;
-                            if (!available[curr_worker]
-                                    || curr_worker == dm.worker) {
-                                continue;
-                            }
-                            byte[] message = ByteBuffer.allocate(msg_resolve_len)
-                                    .putShort((short) dm.worker)
-                                    .putShort((short) data_id)
-                                    .putLong(dm.start).putLong(dm.end)
-                                    .array();
-                            if (POST(makeURL(curr_worker, WorkerAction.RESOLVE), message) == 200) {
-                                done = true;
-                                break;
-                            }
-                        }
-                        if (!done) {
-                            LOGGER.log(Level.SEVERE, "Inconsistency encountered,"
-                                    + " please increase replication factor");
-                        }
-                    }
-                    long t2 = System.currentTimeMillis();
-                    System.out.println("Recovery time for worker " + dm.worker + " was " + (t2-t1));
+                    recover(dm);
                 }
             }, 5, 5, TimeUnit.SECONDS);
         }
+        if (results_refresh > 0) {
+            for (int workerID = 0; workerID < workers.length; workerID++) {
+                int wid = workerID;
+                subscriptions.scheduleWithFixedDelay(() -> subscribe(wid),
+                        0, results_refresh, TimeUnit.MILLISECONDS);
+            }
+        }
+        if (voter_set != null) {
+            gather.execute(this::warmVoters);
+        }
         server.start();
     }
 
     void stop() {
         ping_pong.shutdown();
+        prober.shutdown();
         server.stop(0);
+        if (batch_timer != null) {
+            batch_timer.shutdown();
+        }
+        replicator.shutdown();
+        inconsistency.shutdown();
+        recovery.shutdown();
+        gather.shutdown();
+        subscriptions.shutdownNow();
+        client.close();
+        probe_client.close();
+        if (frames != null) {
+            frames.close();
+            probe_frames.close();
+        }
     }
 }
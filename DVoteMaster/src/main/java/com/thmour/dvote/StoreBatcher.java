@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2016 theofilos
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.thmour.dvote;
+
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Coalesces store records per worker into /batch_store frames. A frame is
+ * flushed when it holds {@code size} records or when its first record has
+ * waited {@code linger} milliseconds, whichever comes first.
+ *
+ * @author theofilos
+ */
+class StoreBatcher {
+
+    private static final Logger LOGGER = Logger.getLogger(StoreBatcher.class.getName());
+
+    private final int size;
+    private final long linger;
+    private final int record_len;
+    private final Sender sender;
+    private final ExecutorService executor;
+    private final ScheduledExecutorService timer;
+    private final ConcurrentHashMap<Integer, Slot> slots = new ConcurrentHashMap<>();
+
+    interface Sender {
+
+        /**
+         * Sends a frame to a worker and returns one status byte per
+         * record, or null if the frame was not accepted.
+         */
+        byte[] send(int worker, byte[] frame);
+    }
+
+    private static class Slot {
+
+        Batch pending;
+    }
+
+    private class Batch {
+
+        final byte[] frame = new byte[size * record_len];
+        @SuppressWarnings("unchecked")
+        final CompletableFuture<Integer>[] results = new CompletableFuture[size];
+        int count = 0;
+    }
+
+    StoreBatcher(int size, long linger, int record_len, Sender sender,
+            ExecutorService executor, ScheduledExecutorService timer) {
+        this.size = size;
+        this.linger = linger;
+        this.record_len = record_len;
+        this.sender = sender;
+        this.executor = executor;
+        this.timer = timer;
+    }
+
+    /**
+     * Queues a record for a worker, the result completes with the code
+     * the worker would have answered to a single /store.
+     */
+    CompletableFuture<Integer> submit(int worker, byte[] record) {
+        CompletableFuture<Integer> result = new CompletableFuture<>();
+        Batch full = null;
+        Slot slot = slots.computeIfAbsent(worker, k -> new Slot());
+        synchronized (slot) {
+            Batch batch = slot.pending;
+            if (batch == null) {
+                batch = new Batch();
+                slot.pending = batch;
+                Batch scheduled = batch;
+                timer.schedule(() -> flush(worker, slot, scheduled), linger, TimeUnit.MILLISECONDS);
+            }
+            System.arraycopy(record, 0, batch.frame, batch.count * record_len, record_len);
+            batch.results[batch.count++] = result;
+            if (batch.count == size) {
+                slot.pending = null;
+                full = batch;
+            }
+        }
+        if (full != null) {
+            Batch batch = full;
+            executor.execute(() -> send(worker, batch));
+        }
+        return result;
+    }
+
+    private void flush(int worker, Slot slot, Batch batch) {
+        synchronized (slot) {
+            if (slot.pending != batch) {
+                return;
+            }
+            slot.pending = null;
+        }
+        executor.execute(() -> send(worker, batch));
+    }
+
+    private void send(int worker, Batch batch) {
+        byte[] frame = batch.count == size ? batch.frame
+                : Arrays.copyOf(batch.frame, batch.count * record_len);
+        byte[] status = null;
+        try {
+            status = sender.send(worker, frame);
+        } catch (RuntimeException ex) {
+            LOGGER.log(Level.SEVERE, null, ex);
+        }
+        for (int i = 0; i < batch.count; i++) {
+            if (status == null || status.length <= i) {
+                batch.results[i].complete(500);
+            } else {
+                batch.results[i].complete(Protocol.statusCode(status[i]));
+            }
+        }
+    }
+}
@@ -0,0 +1,171 @@
+/*
+ * Copyright (C) 2016 theofilos
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.thmour.dvote;
+
+/**
+ * Reads the fields of a url-encoded /vote body, or of the NDJSON lines of a
+ * /vote/batch body, in place without building strings or boxing numbers.
+ *
+ * @author theofilos
+ */
+final class VoteForm {
+
+    /**
+     * Returned by {@link #field} when the key is missing or its value is
+     * not a decimal int.
+     */
+    static final long MISSING = Long.MIN_VALUE;
+
+    static final byte[] VOTER = {'v', 'o', 't', 'e', 'r'};
+    static final byte[] CANDIDATE = {'c', 'a', 'n', 'd', 'i', 'd', 'a', 't', 'e'};
+
+    /**
+     * A binary /vote/batch record: int voter, short candidate, big-endian.
+     */
+    static final int BATCH_RECORD_LEN = Integer.BYTES + Short.BYTES;
+
+    private VoteForm() {
+    }
+
+    /**
+     * The int value of {@code key} in the first {@code len} bytes of
+     * {@code body}, or {@link #MISSING}. The last occurrence wins.
+     */
+    static long field(byte[] body, int len, byte[] key) {
+        long found = MISSING;
+        int pos = 0;
+        while (pos < len) {
+            int end = pos;
+            while (end < len && body[end] != '&' && body[end] != '\r' && body[end] != '\n') {
+                end++;
+            }
+            int eq = pos + key.length;
+            if (eq < end && body[eq] == '=' && matches(body, pos, key)) {
+                found = parseInt(body, eq + 1, end);
+            }
+            if (end < len && body[end] != '&') {
+                break;
+            }
+            pos = end + 1;
+        }
+        return found;
+    }
+
+    /**
+     * Counts the non-blank lines of an NDJSON body.
+     */
+    static int countLines(byte[] body, int len) {
+        int lines = 0;
+        boolean blank = true;
+        for (int i = 0; i < len; i++) {
+            if (body[i] == '\n') {
+                lines += blank ? 0 : 1;
+                blank = true;
+            } else if (!isSpace(body[i])) {
+                blank = false;
+            }
+        }
+        return lines + (blank ? 0 : 1);
+    }
+
+    /**
+     * Reads the voter and candidate of every non-blank NDJSON line, a line
+     * without a valid value gets {@link #MISSING}.
+     */
+    static void parseLines(byte[] body, int len, long[] voters, long[] candidates) {
+        int vote = 0;
+        int pos = 0;
+        while (pos < len && vote < voters.length) {
+            int end = pos;
+            boolean blank = true;
+            while (end < len && body[end] != '\n') {
+                blank &= isSpace(body[end]);
+                end++;
+            }
+            if (!blank) {
+                voters[vote] = jsonField(body, pos, end, VOTER);
+                candidates[vote] = jsonField(body, pos, end, CANDIDATE);
+                vote++;
+            }
+            pos = end + 1;
+        }
+    }
+
+    /**
+     * The int value of the {@code "key": number} member of a flat JSON
+     * object between {@code from} and {@code to}, or {@link #MISSING}.
+     */
+    static long jsonField(byte[] body, int from, int to, byte[] key) {
+        for (int i = from; i + key.length + 1 < to; i++) {
+            if (body[i] != '"' || body[i + key.length + 1] != '"'
+                    || !matches(body, i + 1, key)) {
+                continue;
+            }
+            int pos = i + key.length + 2;
+            while (pos < to && isSpace(body[pos])) {
+                pos++;
+            }
+            if (pos == to || body[pos] != ':') {
+                continue;
+            }
+            pos++;
+            while (pos < to && isSpace(body[pos])) {
+                pos++;
+            }
+            int end = pos;
+            while (end < to && (body[end] == '-' || (body[end] >= '0' && body[end] <= '9'))) {
+                end++;
+            }
+            return parseInt(body, pos, end);
+        }
+        return MISSING;
+    }
+
+    private static boolean isSpace(byte b) {
+        return b == ' ' || b == '\t' || b == '\r' || b == '\n';
+    }
+
+    private static boolean matches(byte[] body, int pos, byte[] key) {
+        for (int i = 0; i < key.length; i++) {
+            if (body[pos + i] != key[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static long parseInt(byte[] body, int from, int to) {
+        boolean negative = from < to && body[from] == '-';
+        int i = negative || (from < to && body[from] == '+') ? from + 1 : from;
+        if (i == to) {
+            return MISSING;
+        }
+        long value = 0;
+        for (; i < to; i++) {
+            int digit = body[i] - '0';
+            if (digit < 0 || digit > 9) {
+                return MISSING;
+            }
+            value = value * 10 + digit;
+            if (value > (long) Integer.MAX_VALUE + 1) {
+                return MISSING;
+            }
+        }
+        value = negative ? -value : value;
+        return value > Integer.MAX_VALUE ? MISSING : value;
+    }
+}
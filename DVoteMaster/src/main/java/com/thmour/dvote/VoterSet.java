@@ -0,0 +1,61 @@
+/*
+ * Copyright (C) 2016 theofilos
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.thmour.dvote;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * The voters the workers are known to hold. The voter ID space is split in
+ * blocks of 65536 IDs and every block is a bitset allocated on its first
+ * voter, 8KB per block in use. A voter in the set has certainly voted, a
+ * voter outside of it may still have voted through another master or
+ * before the set was warmed, so only a hit is conclusive.
+ *
+ * @author theofilos
+ */
+class VoterSet {
+
+    private static final int BLOCK_BITS = 16;
+    private static final int BLOCK_WORDS = (1 << BLOCK_BITS) / Long.SIZE;
+
+    private final AtomicReferenceArray<AtomicLongArray> blocks
+            = new AtomicReferenceArray<>(1 << (Integer.SIZE - BLOCK_BITS));
+
+    boolean contains(int voter) {
+        AtomicLongArray block = blocks.get(voter >>> BLOCK_BITS);
+        if (block == null) {
+            return false;
+        }
+        int bit = voter & ((1 << BLOCK_BITS) - 1);
+        return (block.get(bit >>> 6) & (1L << bit)) != 0;
+    }
+
+    void add(int voter) {
+        int index = voter >>> BLOCK_BITS;
+        AtomicLongArray block = blocks.get(index);
+        if (block == null) {
+            blocks.compareAndSet(index, null, new AtomicLongArray(BLOCK_WORDS));
+            block = blocks.get(index);
+        }
+        int bit = voter & ((1 << BLOCK_BITS) - 1);
+        long mask = 1L << bit;
+        if ((block.get(bit >>> 6) & mask) == 0) {
+            block.accumulateAndGet(bit >>> 6, mask, (word, m) -> word | m);
+        }
+    }
+}
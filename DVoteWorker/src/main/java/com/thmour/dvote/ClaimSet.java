@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2016 theofilos
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.thmour.dvote;
+
+/**
+ * The voters of a fragment whose records are on their way to the log, in a
+ * linear probing table of ints so that a claim does not box its voter. It
+ * only holds the records in flight, so one lock per fragment is enough.
+ *
+ * @author theofilos
+ */
+class ClaimSet {
+
+    // marks a free slot, voter 0 is kept aside
+    private static final int FREE = 0;
+
+    private int[] slots = new int[16];
+    private int size = 0;
+    private boolean zero = false;
+
+    /**
+     * Claims a voter, false if it is claimed already.
+     */
+    synchronized boolean add(int voter) {
+        if (voter == FREE) {
+            boolean added = !zero;
+            zero = true;
+            return added;
+        }
+        int mask = slots.length - 1;
+        int slot = VoteTable.hash(voter) & mask;
+        while (slots[slot] != FREE) {
+            if (slots[slot] == voter) {
+                return false;
+            }
+            slot = (slot + 1) & mask;
+        }
+        slots[slot] = voter;
+        if (++size * 2 > slots.length) {
+            grow();
+        }
+        return true;
+    }
+
+    /**
+     * Releases a claim, shifting back the voters probed past its slot so
+     * that no tombstones are left.
+     */
+    synchronized void remove(int voter) {
+        if (voter == FREE) {
+            zero = false;
+            return;
+        }
+        int mask = slots.length - 1;
+        int slot = VoteTable.hash(voter) & mask;
+        while (slots[slot] != voter) {
+            if (slots[slot] == FREE) {
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+        for (int next = (slot + 1) & mask; slots[next] != FREE; next = (next + 1) & mask) {
+            int home = VoteTable.hash(slots[next]) & mask;
+            // a voter stays if its home lies cyclically in (slot, next]
+            boolean stays = slot <= next ? slot < home && home <= next
+                    : slot < home || home <= next;
+            if (!stays) {
+                slots[slot] = slots[next];
+                slot = next;
+            }
+        }
+        slots[slot] = FREE;
+        size--;
+    }
+
+    private void grow() {
+        int[] old = slots;
+        slots = new int[old.length * 2];
+        int mask = slots.length - 1;
+        for (int voter : old) {
+            if (voter != FREE) {
+                int slot = VoteTable.hash(voter) & mask;
+                while (slots[slot] != FREE) {
+                    slot = (slot + 1) & mask;
+                }
+                slots[slot] = voter;
+            }
+        }
+    }
+}
@@ -0,0 +1,223 @@
+/*
+ * Copyright (C) 2016 theofilos
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.thmour.dvote;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Group commit writer of the vote log. Appends wait in a queue, and the
+ * writer thread drains up to {@code batch_size} records of them (waiting
+ * up to {@code linger} for more), appends them to the log as one block,
+ * forces them to disk and only then runs their callbacks. A vote is acknowledged once
+ * it is durable, and the appends that arrive during a force share the
+ * next one. The callbacks run on the writer thread between two batches,
+ * so they only update memory and leave the replies to other threads.
+ *
+ * @author theofilos
+ */
+class LogWriter {
+
+    private static final Logger LOGGER = Logger.getLogger(LogWriter.class.getName());
+    // queued by close, the writer stops when it takes it
+    private static final Append CLOSE = new Append(new byte[0], 0, 0, durable -> {
+    });
+
+    private final SegmentLog log;
+    private final int batch_size;
+    private final long linger;
+    private final boolean fsync;
+    private final BlockingQueue<Append> queue;
+    private final Thread thread;
+    private final Metrics.Histogram queue_wait;
+    private final Metrics.Histogram disk_write;
+    private final Metrics.Counter batches;
+    private byte[] buffer;
+    private volatile long applied;
+
+    /**
+     * Runs on the writer thread once the records of an append are durable,
+     * or failed to be written. It must not block, the next batch waits for
+     * it.
+     */
+    interface Done {
+
+        void done(boolean durable);
+    }
+
+    private static class Append {
+
+        final byte[] data;
+        final int offset;
+        final int length;
+        final Done done;
+        final long queued = System.nanoTime();
+
+        Append(byte[] data, int offset, int length, Done done) {
+            this.data = data;
+            this.offset = offset;
+            this.length = length;
+            this.done = done;
+        }
+    }
+
+    /**
+     * @param batch_size the most records forced together
+     * @param linger milliseconds the writer waits for a batch to fill
+     * @param fsync force every batch to disk before its acknowledgement
+     */
+    LogWriter(SegmentLog log, int batch_size, long linger, boolean fsync, Metrics metrics) {
+        this.log = log;
+        this.batch_size = batch_size;
+        this.linger = TimeUnit.MILLISECONDS.toNanos(linger);
+        this.fsync = fsync;
+        this.queue = new ArrayBlockingQueue<>(Math.max(4 * batch_size, 1024));
+        this.buffer = new byte[batch_size * Protocol.RECORD_LEN];
+        this.thread = new Thread(this::run, "log-writer");
+        this.thread.setDaemon(true);
+        queue_wait = metrics.histogram("dvote_write_queue_wait_seconds",
+                "Time a record waited for its batch", "");
+        disk_write = metrics.histogram("dvote_disk_write_seconds",
+                "Time spent writing and forcing a batch", "");
+        batches = metrics.counter("dvote_log_batches_total", "Batches written to the log", "");
+        metrics.gauge("dvote_write_queue_depth", "Appends waiting for the writer", "", queue::size);
+    }
+
+    void start() {
+        applied = log.durable();
+        thread.start();
+    }
+
+    /**
+     * Queues records for the log, blocks while the queue is full.
+     */
+    void append(byte[] data, int offset, int length, Done done) throws InterruptedException {
+        queue.put(new Append(data, offset, length, done));
+    }
+
+    /**
+     * The log position up to which every record is durable and its
+     * callback has run.
+     */
+    long applied() {
+        return applied;
+    }
+
+    /**
+     * Writes what was queued before the call and stops the writer. The
+     * writer is not interrupted, an interrupt in a force would close the
+     * log channel under the last batch.
+     */
+    void close() {
+        try {
+            queue.put(CLOSE);
+            thread.join(TimeUnit.SECONDS.toMillis(10));
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        Append append;
+        while ((append = queue.poll()) != null) {
+            append.done.done(false);
+        }
+    }
+
+    private void run() {
+        List<Append> batch = new ArrayList<>();
+        boolean closing = false;
+        while (!closing) {
+            try {
+                Append first = queue.take();
+                if (first == CLOSE) {
+                    break;
+                }
+                batch.add(first);
+                int records = first.length / Protocol.RECORD_LEN;
+                long deadline = System.nanoTime() + linger;
+                while (records < batch_size) {
+                    Append next = queue.poll();
+                    if (next == null && linger > 0) {
+                        long wait = deadline - System.nanoTime();
+                        if (wait <= 0) {
+                            break;
+                        }
+                        next = queue.poll(wait, TimeUnit.NANOSECONDS);
+                    }
+                    if (next == null) {
+                        break;
+                    }
+                    if (next == CLOSE) {
+                        closing = true;
+                        break;
+                    }
+                    batch.add(next);
+                    records += next.length / Protocol.RECORD_LEN;
+                }
+            } catch (InterruptedException ex) {
+                // only close stops the writer, write what was taken
+            }
+            if (!batch.isEmpty()) {
+                commit(batch);
+                batch.clear();
+            }
+        }
+    }
+
+    private void commit(List<Append> batch) {
+        int length = 0;
+        long now = System.nanoTime();
+        for (Append append : batch) {
+            length += append.length;
+            queue_wait.observe(now - append.queued);
+        }
+        if (buffer.length < length) {
+            buffer = new byte[length];
+        }
+        int position = 0;
+        for (Append append : batch) {
+            System.arraycopy(append.data, append.offset, buffer, position, append.length);
+            position += append.length;
+        }
+
+        boolean durable = false;
+        try {
+            log.append(buffer, 0, length);
+            log.commit(fsync);
+            durable = true;
+        } catch (IOException | UncheckedIOException ex) {
+            LOGGER.log(Level.SEVERE, null, ex);
+            // drop a partly written batch, its records were not acknowledged
+            log.rollback();
+        }
+        disk_write.since(now);
+        batches.inc();
+        for (Append append : batch) {
+            try {
+                append.done.done(durable);
+            } catch (RuntimeException ex) {
+                LOGGER.log(Level.WARNING, null, ex);
+            }
+        }
+        applied = log.durable();
+    }
+}
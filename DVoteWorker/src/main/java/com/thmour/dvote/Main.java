@@ -37,6 +37,8 @@ public class Main {
     private static final Logger LOGGER = Logger.getLogger(Server.class.getName());
     
     public static void main(String[] args) {
+        // keep-alive connections stall on delayed acks without it
+        System.setProperty("sun.net.httpserver.nodelay", "true");
         String path = null;
         try {
             path = Main.class.getProtectionDomain().getCodeSource()
@@ -61,7 +63,32 @@ public class Main {
             int port = Integer.valueOf(p.getProperty("worker.port", "9090"));
             String[] workers = p.getProperty("workers", "localhost").split(",");
             int candidates = Integer.valueOf(p.getProperty("candidates", "3"));
-            server = new Server(path, workers, candidates, port);
+            WorkerClient client = new WorkerClient(
+                    Integer.valueOf(p.getProperty("client.pool_size", "4")),
+                    Integer.valueOf(p.getProperty("client.connect_timeout", "500")),
+                    Integer.valueOf(p.getProperty("client.read_timeout", "10000")),
+                    Long.valueOf(p.getProperty("client.keep_alive", "20000")));
+            int partitions = Integer.valueOf(p.getProperty("partitions", "256"));
+            int replication = Integer.valueOf(p.getProperty("replication", "1"));
+            int vnodes = Integer.valueOf(p.getProperty("vnodes", "64"));
+            long sync_interval = Long.valueOf(p.getProperty("antientropy.interval_ms", "30000"));
+            AdmissionControl admission = new AdmissionControl(
+                    Integer.valueOf(p.getProperty("admission.min_limit", "128")),
+                    Integer.valueOf(p.getProperty("admission.limit", "1024")),
+                    Integer.valueOf(p.getProperty("admission.queue", "1024")),
+                    Boolean.valueOf(p.getProperty("admission.adaptive", "true")),
+                    Integer.valueOf(p.getProperty("admission.retry_after", "1")));
+            server = new Server(path, workers, candidates, partitions, replication,
+                    vnodes, port, sync_interval, client, admission,
+                    Threads.isVirtual(p.getProperty("executor", "pool")),
+                    "frame".equalsIgnoreCase(p.getProperty("transport", "http").trim())
+                    ? port + Integer.valueOf(p.getProperty("frame.port_offset", "1000")) : 0,
+                    Boolean.valueOf(p.getProperty("fault.injection", "false")),
+                    Integer.valueOf(p.getProperty("writer.batch_size", "4096")),
+                    Long.valueOf(p.getProperty("writer.linger_ms", "0")),
+                    Boolean.valueOf(p.getProperty("writer.fsync", "true")),
+                    Integer.valueOf(p.getProperty("log.segment_mb", "64")) << 20,
+                    Long.valueOf(p.getProperty("snapshot.interval_ms", "60000")));
             server.start();
             Executors.newSingleThreadScheduledExecutor().schedule(() -> {
                 server.stop();
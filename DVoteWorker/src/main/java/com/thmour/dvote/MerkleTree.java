@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2016 theofilos
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.thmour.dvote;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Hash trees over the votes of every fragment. The leaves split the space
+ * of voter hashes in equal ranges and hold the sum of the hashes of their
+ * votes, every inner node holds the sum of its children. Sums do not depend
+ * on the order votes arrive in, so a vote is added to its leaf and to the
+ * path up to the root without touching the rest of the tree, and two
+ * replicas with the same votes in a fragment have the same root.
+ * <p>
+ * A leaf is a prefix of the {@link VoteTable} hash of its voters, so the
+ * votes of a leaf are read from a range of the table. Replicas compare the
+ * trees {@link #STEP} levels at a time, from the roots down to the leaves.
+ *
+ * @author theofilos
+ */
+class MerkleTree {
+
+    /**
+     * The depth of the trees, 1024 leaves of 16KB per fragment in all.
+     */
+    static final int LEAF_BITS = 10;
+    static final int LEAVES = 1 << LEAF_BITS;
+
+    /**
+     * The levels skipped in one comparison, {@code LEAF_BITS} is a multiple
+     * of it so that the descent ends on the leaves.
+     */
+    static final int STEP = 5;
+    static final int FANOUT = 1 << STEP;
+
+    private final AtomicLongArray[] trees;
+
+    MerkleTree(int partitions) {
+        this.trees = new AtomicLongArray[partitions];
+        for (int p = 0; p < partitions; p++) {
+            // heap layout, node 1 is the root and the leaves start at LEAVES
+            trees[p] = new AtomicLongArray(2 * LEAVES);
+        }
+    }
+
+    static int leaf(int voter) {
+        return VoteTable.hash(voter) >>> (Integer.SIZE - LEAF_BITS);
+    }
+
+    static boolean isLeaf(int node) {
+        return node >= LEAVES;
+    }
+
+    /**
+     * The node {@link #STEP} levels below {@code node}, {@code i} from the
+     * left.
+     */
+    static int descendant(int node, int i) {
+        if (node < 1 || node >= 2 * LEAVES >> STEP || i < 0 || i >= FANOUT) {
+            throw new IllegalArgumentException("No descendant " + i + " of node " + node);
+        }
+        return (node << STEP) + i;
+    }
+
+    void add(int partition, int voter, short candidate) {
+        long hash = hash(voter, candidate);
+        AtomicLongArray tree = trees[partition];
+        for (int node = LEAVES + leaf(voter); node > 0; node >>>= 1) {
+            tree.addAndGet(node, hash);
+        }
+    }
+
+    long root(int partition) {
+        return trees[partition].get(1);
+    }
+
+    long node(int partition, int node) {
+        return trees[partition].get(node);
+    }
+
+    private static long hash(int voter, short candidate) {
+        long key = ((long) voter << Short.SIZE) | (candidate & 0xFFFF);
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return key;
+    }
+}
@@ -0,0 +1,196 @@
+/*
+ * Copyright (C) 2016 theofilos
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.thmour.dvote;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Startup replay of the log on all cores. The blocks are split in
+ * contiguous chunks that are decoded in parallel into columns per
+ * fragment, then every fragment is applied by a single thread from the
+ * chunks in log order, so the first vote of a voter in the log wins as in
+ * a sequential replay and no two threads touch the same fragment.
+ *
+ * @author theofilos
+ */
+class Replay {
+
+    private static final Logger LOGGER = Logger.getLogger(Replay.class.getName());
+    private static final long REPORT_INTERVAL = TimeUnit.SECONDS.toNanos(1);
+
+    private final int partitions;
+    private final int threads;
+    private final AtomicLong decoded = new AtomicLong();
+    private final AtomicLong next_report = new AtomicLong();
+    private long records;
+    private long started;
+
+    /**
+     * The votes of a fragment in one chunk, in log order.
+     */
+    static final class Columns {
+
+        int size = 0;
+        int[] voters = new int[16];
+        short[] candidates = new short[16];
+        long[] timestamps = new long[16];
+
+        void add(int voter, short candidate, long timestamp) {
+            if (size == voters.length) {
+                voters = Arrays.copyOf(voters, size * 2);
+                candidates = Arrays.copyOf(candidates, size * 2);
+                timestamps = Arrays.copyOf(timestamps, size * 2);
+            }
+            voters[size] = voter;
+            candidates[size] = candidate;
+            timestamps[size] = timestamp;
+            size++;
+        }
+    }
+
+    interface Sink {
+
+        /**
+         * Applies the votes of a fragment, called once per fragment with
+         * votes and from several threads at a time.
+         *
+         * @param parts the votes of every chunk in log order, null for the
+         * chunks without votes of the fragment
+         * @param total the votes in all the parts
+         */
+        void fragment(short data_id, Columns[] parts, int total);
+    }
+
+    Replay(int partitions, int threads) {
+        this.partitions = partitions;
+        this.threads = Math.max(threads, 1);
+    }
+
+    /**
+     * Replays the blocks into the sink and returns the records read.
+     */
+    long run(List<SegmentLog.Block> blocks, Sink sink) throws InterruptedException,
+            ExecutionException {
+        records = 0;
+        for (SegmentLog.Block block : blocks) {
+            records += block.records.capacity() / Protocol.RECORD_LEN;
+        }
+        if (records == 0) {
+            return 0;
+        }
+        started = System.nanoTime();
+        next_report.set(started + REPORT_INTERVAL);
+
+        // chunks of about the same size, a few per thread to even out
+        int chunks = Math.min(blocks.size(), threads * 4);
+        int[] bounds = new int[chunks + 1];
+        long target = records / chunks, filled = 0;
+        int c = 1;
+        for (int b = 0; b < blocks.size() && c < chunks; b++) {
+            filled += blocks.get(b).records.capacity() / Protocol.RECORD_LEN;
+            if (filled >= target * c) {
+                bounds[c++] = b + 1;
+            }
+        }
+        while (c <= chunks) {
+            bounds[c++] = blocks.size();
+        }
+
+        Columns[][] columns = new Columns[chunks][partitions];
+        ExecutorService pool = Threads.fixed(false, threads);
+        try {
+            List<Callable<Void>> decode = new ArrayList<>(chunks);
+            for (int chunk_id = 0; chunk_id < chunks; chunk_id++) {
+                Columns[] chunk = columns[chunk_id];
+                List<SegmentLog.Block> part = blocks.subList(bounds[chunk_id], bounds[chunk_id + 1]);
+                decode.add(() -> {
+                    for (SegmentLog.Block block : part) {
+                        decode(block.records.duplicate(), chunk);
+                    }
+                    return null;
+                });
+            }
+            invoke(pool, decode);
+
+            List<Callable<Void>> apply = new ArrayList<>(partitions);
+            for (int f = 0; f < partitions; f++) {
+                short data_id = (short) f;
+                Columns[] parts = new Columns[chunks];
+                int total = 0;
+                for (int chunk_id = 0; chunk_id < chunks; chunk_id++) {
+                    parts[chunk_id] = columns[chunk_id][f];
+                    total += parts[chunk_id] == null ? 0 : parts[chunk_id].size;
+                }
+                if (total > 0) {
+                    int votes = total;
+                    apply.add(() -> {
+                        sink.fragment(data_id, parts, votes);
+                        return null;
+                    });
+                }
+            }
+            invoke(pool, apply);
+        } finally {
+            pool.shutdown();
+        }
+        return records;
+    }
+
+    private void decode(ByteBuffer data, Columns[] chunk) {
+        int count = data.remaining() / Protocol.RECORD_LEN;
+        while (data.hasRemaining()) {
+            short data_id = data.getShort();
+            int voter = data.getInt();
+            short candidate = data.getShort();
+            long timestamp = data.getLong();
+            Columns fragment = chunk[data_id];
+            if (fragment == null) {
+                fragment = chunk[data_id] = new Columns();
+            }
+            fragment.add(voter, candidate, timestamp);
+        }
+        report(decoded.addAndGet(count));
+    }
+
+    private void report(long done) {
+        long now = System.nanoTime();
+        long due = next_report.get();
+        if (now < due || !next_report.compareAndSet(due, now + REPORT_INTERVAL)) {
+            return;
+        }
+        LOGGER.log(Level.INFO, "Replayed {0} of {1} records, {2} records/s",
+                new Object[]{done, records, done * TimeUnit.SECONDS.toNanos(1) / (now - started)});
+    }
+
+    private static void invoke(ExecutorService pool, List<Callable<Void>> tasks)
+            throws InterruptedException, ExecutionException {
+        for (Future<Void> task : pool.invokeAll(tasks)) {
+            task.get();
+        }
+    }
+}
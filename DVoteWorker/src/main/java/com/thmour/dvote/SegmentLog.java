@@ -0,0 +1,487 @@
+/*
+ * Copyright (C) 2016 theofilos
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.thmour.dvote;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+
+/**
+ * The vote log of a worker, a directory of memory-mapped segment files.
+ * A segment is named after the log position of its first byte and starts
+ * with a header that holds its tail, the records follow in blocks of
+ * {@code int length, int crc32c, records}. Appends copy into the mapping
+ * and a commit moves the tail past them and forces the mapping from the
+ * header to the last block with a single msync. {@code FileChannel.force}
+ * is not promised to write back changes made through a mapping.
+ * <p>
+ * Everything below the tail was acknowledged, so a block there that fails
+ * its checksum is corruption. A crash during a force may leave the tail
+ * behind its blocks, the blocks that follow the tail are checked when the
+ * log opens and kept while they are whole. Nothing is written past a torn
+ * block, as segments are never reused.
+ * <p>
+ * The next segment is zero-filled by a background thread once the current
+ * one is half full, so its disk blocks are allocated before it is mapped
+ * and a full disk fails the allocation rather than a store to the mapping.
+ *
+ * @author theofilos
+ */
+class SegmentLog {
+
+    private static final Logger LOGGER = Logger.getLogger(SegmentLog.class.getName());
+
+    static final int HEADER = 32;
+    static final int BLOCK_HEADER = 2 * Integer.BYTES;
+    private static final int MAGIC = 0x44564c47;
+    private static final int VERSION = 1;
+    private static final int BASE = 8;
+    private static final int TAIL = 16;
+    private static final String SUFFIX = ".log";
+    private static final String SPARE = "next.tmp";
+    private static final byte[] ZEROS = new byte[4096];
+
+    private final Path dir;
+    private final int segment_size;
+    private final ArrayList<Segment> segments = new ArrayList<>();
+    private final List<Segment> dirty = new ArrayList<>();
+    private final ExecutorService allocator = Executors.newSingleThreadExecutor(task -> {
+        Thread thread = new Thread(task, "log-allocator");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private Future<Path> spare;
+    private long durable;
+
+    /**
+     * A block of records at a log position.
+     */
+    static final class Block {
+
+        final long position;
+        final ByteBuffer records;
+        private final int checksum;
+
+        Block(long position, ByteBuffer records, int checksum) {
+            this.position = position;
+            this.records = records;
+            this.checksum = checksum;
+        }
+
+        boolean intact() {
+            CRC32C crc = new CRC32C();
+            crc.update(records.duplicate());
+            return (int) crc.getValue() == checksum;
+        }
+    }
+
+    private static class Segment {
+
+        final Path path;
+        final long base;
+        final FileChannel channel;
+        final MappedByteBuffer map;
+        final int capacity;
+        // data bytes written, in the header and committed, without the header
+        int end;
+        int tail;
+        int committed;
+
+        Segment(Path path, long base, FileChannel channel) throws IOException {
+            this.path = path;
+            this.base = base;
+            this.channel = channel;
+            this.map = channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+            this.capacity = map.capacity() - HEADER;
+        }
+
+        void writeTail(int tail) {
+            this.tail = tail;
+            this.end = Math.max(end, tail);
+            map.putLong(TAIL, tail);
+        }
+
+        void zero(int from, int to) {
+            for (int at = from; at < to; at += ZEROS.length) {
+                map.put(HEADER + at, ZEROS, 0, Math.min(ZEROS.length, to - at));
+            }
+        }
+
+        /**
+         * The records of the block at {@code position}, or null if no
+         * whole block is there.
+         */
+        ByteBuffer block(int position) {
+            if (position + BLOCK_HEADER > capacity) {
+                return null;
+            }
+            int at = HEADER + position;
+            int length = map.getInt(at);
+            if (length <= 0 || length % Protocol.RECORD_LEN != 0
+                    || position + BLOCK_HEADER + length > capacity) {
+                return null;
+            }
+            ByteBuffer records = map.slice(at + BLOCK_HEADER, length);
+            CRC32C crc = new CRC32C();
+            crc.update(records.duplicate());
+            return (int) crc.getValue() == map.getInt(at + Integer.BYTES) ? records : null;
+        }
+    }
+
+    /**
+     * Opens the log in {@code dir}, creating it if needed. New segments
+     * hold {@code segment_size} bytes, existing ones keep their size.
+     */
+    SegmentLog(Path dir, int segment_size) throws IOException {
+        this.dir = dir;
+        this.segment_size = Math.max(segment_size, HEADER + BLOCK_HEADER + Protocol.RECORD_LEN);
+        Files.createDirectories(dir);
+        try (Stream<Path> files = Files.list(dir)) {
+            files.filter(file -> file.getFileName().toString().endsWith(SUFFIX))
+                    .sorted()
+                    .forEach(file -> {
+                        try {
+                            Segment segment = open(file);
+                            if (segment != null) {
+                                segments.add(segment);
+                            }
+                        } catch (IOException ex) {
+                            throw new UncheckedIOException(ex);
+                        }
+                    });
+        } catch (UncheckedIOException ex) {
+            throw ex.getCause();
+        }
+        if (segments.isEmpty()) {
+            segments.add(create(0));
+        }
+        Segment last = current();
+        durable = last.base + last.tail;
+    }
+
+    /**
+     * The log position up to which the records are committed.
+     */
+    synchronized long durable() {
+        return durable;
+    }
+
+    /**
+     * Copies records to the log, rolling to a new segment when the current
+     * one is full. They are not durable, nor replayed, before a commit.
+     */
+    synchronized void append(byte[] data, int offset, int length) throws IOException {
+        while (length > 0) {
+            Segment segment = current();
+            int room = segment.capacity - segment.end - BLOCK_HEADER;
+            if (room < Protocol.RECORD_LEN) {
+                roll();
+                continue;
+            }
+            int block = Math.min(length, room - room % Protocol.RECORD_LEN);
+            CRC32C crc = new CRC32C();
+            crc.update(data, offset, block);
+            int at = HEADER + segment.end;
+            segment.map.putInt(at, block);
+            segment.map.putInt(at + Integer.BYTES, (int) crc.getValue());
+            segment.map.put(at + BLOCK_HEADER, data, offset, block);
+            segment.end += BLOCK_HEADER + block;
+            if (!dirty.contains(segment)) {
+                dirty.add(segment);
+            }
+            if (spare == null && segment.end > segment.capacity / 2) {
+                spare = allocator.submit(this::allocate);
+            }
+            offset += block;
+            length -= block;
+        }
+    }
+
+    /**
+     * Moves the tail of every written segment past its new blocks, and
+     * forces them to disk if {@code force}.
+     */
+    synchronized void commit(boolean force) throws IOException {
+        for (Segment segment : dirty) {
+            segment.writeTail(segment.end);
+            if (force) {
+                // one range for the tail and the blocks, the clean pages between cost no write
+                segment.map.force(0, HEADER + segment.end);
+            }
+        }
+        for (Segment segment : dirty) {
+            segment.committed = segment.tail;
+        }
+        dirty.clear();
+        Segment last = current();
+        durable = last.base + last.tail;
+    }
+
+    /**
+     * Drops what was appended since the last commit, with the segments
+     * created for it. The dropped blocks are zeroed, or open() would keep
+     * them as whole blocks past the tail and replay records that were
+     * never acknowledged.
+     */
+    synchronized void rollback() {
+        while (segments.size() > 1 && current().base > durable) {
+            Segment segment = segments.remove(segments.size() - 1);
+            close(segment);
+            try {
+                Files.deleteIfExists(segment.path);
+            } catch (IOException ex) {
+                LOGGER.log(Level.WARNING, null, ex);
+            }
+        }
+        for (Segment segment : dirty) {
+            int end = segment.end;
+            segment.zero(segment.committed, end);
+            segment.writeTail(segment.committed);
+            segment.end = segment.committed;
+            try {
+                segment.map.force(0, HEADER + end);
+            } catch (UncheckedIOException ex) {
+                LOGGER.log(Level.WARNING, null, ex);
+            }
+        }
+        dirty.clear();
+    }
+
+    /**
+     * The committed blocks from position {@code from} on, in log order,
+     * their checksums checked in parallel. The position must start a
+     * block, like the durable positions do. A block that fails its checksum
+     * ends its segment, and cuts the segment there if it is the last one.
+     */
+    synchronized List<Block> blocks(long from) {
+        List<Segment> read = new ArrayList<>();
+        List<List<Block>> found = new ArrayList<>();
+        List<Integer> readable = new ArrayList<>();
+        List<Block> all = new ArrayList<>();
+        for (Segment segment : segments) {
+            if (segment.base + segment.tail <= from) {
+                continue;
+            }
+            List<Block> blocks = new ArrayList<>();
+            int position = (int) Math.max(from - segment.base, 0);
+            while (position + BLOCK_HEADER <= segment.tail) {
+                int length = segment.map.getInt(HEADER + position);
+                if (length <= 0 || length % Protocol.RECORD_LEN != 0
+                        || position + BLOCK_HEADER + length > segment.tail) {
+                    break;
+                }
+                blocks.add(new Block(segment.base + position,
+                        segment.map.slice(HEADER + position + BLOCK_HEADER, length),
+                        segment.map.getInt(HEADER + position + Integer.BYTES)));
+                position += BLOCK_HEADER + length;
+            }
+            read.add(segment);
+            found.add(blocks);
+            readable.add(position);
+            all.addAll(blocks);
+        }
+        Set<Block> damaged = ConcurrentHashMap.newKeySet();
+        all.parallelStream().filter(block -> !block.intact()).forEach(damaged::add);
+
+        List<Block> result = new ArrayList<>(all.size());
+        for (int i = 0; i < read.size(); i++) {
+            Segment segment = read.get(i);
+            int position = readable.get(i);
+            for (Block block : found.get(i)) {
+                if (damaged.contains(block)) {
+                    position = (int) (block.position - segment.base);
+                    break;
+                }
+                result.add(block);
+            }
+            if (position < segment.tail) {
+                LOGGER.log(Level.SEVERE, "Corrupt block in {0} at {1}, {2} bytes skipped",
+                        new Object[]{segment.path.getFileName(), position, segment.tail - position});
+                if (segment == current()) {
+                    cut(segment, position);
+                    durable = segment.base + position;
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Deletes the segments that end at or before {@code position}, all but
+     * the one being written.
+     */
+    synchronized int deleteBefore(long position) {
+        int deleted = 0;
+        while (segments.size() > 1 && segments.get(0).base + segments.get(0).tail <= position) {
+            Segment segment = segments.remove(0);
+            close(segment);
+            try {
+                Files.deleteIfExists(segment.path);
+                deleted++;
+            } catch (IOException ex) {
+                LOGGER.log(Level.WARNING, null, ex);
+            }
+        }
+        return deleted;
+    }
+
+    void close() {
+        allocator.shutdownNow();
+        synchronized (this) {
+            segments.forEach(SegmentLog::close);
+        }
+    }
+
+    private Segment current() {
+        return segments.get(segments.size() - 1);
+    }
+
+    private void roll() throws IOException {
+        Segment last = current();
+        segments.add(create(last.base + last.end));
+    }
+
+    private Segment create(long base) throws IOException {
+        if (spare == null) {
+            spare = allocator.submit(this::allocate);
+        }
+        Path file;
+        try {
+            file = spare.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException(ex);
+        } catch (ExecutionException ex) {
+            throw new IOException(ex.getCause());
+        } finally {
+            spare = null;
+        }
+        Path path = dir.resolve(String.format("%020d", base) + SUFFIX);
+        Files.move(file, path, StandardCopyOption.ATOMIC_MOVE);
+        Segment segment = map(path, base);
+        segment.map.putInt(0, MAGIC);
+        segment.map.putInt(Integer.BYTES, VERSION);
+        segment.map.putLong(BASE, base);
+        segment.writeTail(0);
+        segment.map.force(0, HEADER);
+        return segment;
+    }
+
+    /**
+     * Maps an existing segment and moves its tail past the whole blocks
+     * that follow it, or deletes it and returns null if it was never
+     * initialized.
+     */
+    private Segment open(Path path) throws IOException {
+        String name = path.getFileName().toString();
+        long base = Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+        Segment segment = map(path, base);
+        if (segment.map.getInt(0) == 0) {
+            close(segment);
+            LOGGER.log(Level.WARNING, "Removing uninitialized segment {0}", name);
+            Files.delete(path);
+            return null;
+        }
+        if (segment.map.getInt(0) != MAGIC || segment.map.getInt(Integer.BYTES) != VERSION
+                || segment.map.getLong(BASE) != base) {
+            close(segment);
+            throw new IOException("Not a log segment: " + path);
+        }
+        int tail = (int) Math.min(Math.max(segment.map.getLong(TAIL), 0), segment.capacity);
+        ByteBuffer records;
+        while ((records = segment.block(tail)) != null) {
+            tail += BLOCK_HEADER + records.capacity();
+        }
+        segment.end = tail;
+        segment.committed = tail;
+        segment.writeTail(tail);
+        if (tail + BLOCK_HEADER <= segment.capacity && segment.map.getInt(HEADER + tail) != 0) {
+            cut(segment, tail);
+        }
+        return segment;
+    }
+
+    /**
+     * Ends a segment at {@code position}, zeroing what follows so a later
+     * append cannot be read together with the remains of a torn block.
+     */
+    private static void cut(Segment segment, int position) {
+        segment.writeTail(position);
+        segment.end = position;
+        segment.committed = position;
+        byte[] zeros = new byte[1 << 16];
+        for (int at = HEADER + position; at < segment.map.capacity(); at += zeros.length) {
+            segment.map.put(at, zeros, 0, Math.min(zeros.length, segment.map.capacity() - at));
+        }
+        segment.map.force();
+    }
+
+    private Segment map(Path path, long base) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        try {
+            return new Segment(path, base, channel);
+        } catch (IOException ex) {
+            channel.close();
+            throw ex;
+        }
+    }
+
+    private static void close(Segment segment) {
+        try {
+            segment.channel.close();
+        } catch (IOException ex) {
+            LOGGER.log(Level.WARNING, null, ex);
+        }
+    }
+
+    /**
+     * Zero-fills the next segment.
+     */
+    private Path allocate() throws IOException {
+        Path file = dir.resolve(SPARE);
+        ByteBuffer zeros = ByteBuffer.allocateDirect(1 << 20);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            long written = 0;
+            while (written < segment_size) {
+                zeros.clear().limit((int) Math.min(zeros.capacity(), segment_size - written));
+                written += channel.write(zeros);
+            }
+            channel.force(true);
+        }
+        return file;
+    }
+}
@@ -16,28 +16,40 @@
  */
 package com.thmour.dvote;
 
+import com.sun.net.httpserver.Filter;
 import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpHandler;
 import com.sun.net.httpserver.HttpServer;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.net.HttpURLConnection;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
 import java.net.URISyntaxException;
-import java.net.URL;
 import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.util.ArrayList;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLongArray;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -49,259 +61,1047 @@ import java.util.logging.Logger;
 class Server {
 
     private static final Logger LOGGER = Logger.getLogger(Server.class.getName());
+    private static final int RESOLVE_CHUNK = 4096;
+    private static final byte[] OK = "OK".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] ALREADY_EXISTS = "Already exists".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] IO_ERROR = "I/O Error".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] BATCH_LOAD_FAILED = "Batch load failed".getBytes(StandardCharsets.US_ASCII);
 
     private final HttpServer server;
     private final String data_path;
+    private final SegmentLog log;
     private final int row_len = 2 * Short.BYTES + Integer.BYTES + Long.BYTES;
-    private final ConcurrentHashMap<Integer, VoteEntry>[] voteMap;
+    private final VoteTable[] voteMap;
+    private final TimeIndex[] voteTimes;
     private final AtomicLongArray[] voteResults;
-    private final BlockingQueue<ByteBuffer> writeQueue;
-    private final ExecutorService writer = Executors.newSingleThreadExecutor();
+    private final AtomicLongArray voteVersions;
+    private final long epoch = new Random().nextLong();
+    private final ConcurrentLinkedQueue<ResultsWaiter> waiters = new ConcurrentLinkedQueue<>();
+    private final ScheduledExecutorService notifier;
+    private final int numcandidates;
+    private volatile String[] worker_addr;
+    private final LogWriter writer;
+    // voters whose record is on its way to the log
+    private final ClaimSet[] pending;
+    private final WorkerClient client;
+    private final int port;
+    private final int partitions;
+    private final int replication;
+    private final int vnodes;
+    private final MerkleTree merkle;
+    private final long sync_interval;
+    private final ScheduledExecutorService anti_entropy;
+    private final Snapshots snapshots;
+    private final long snapshot_interval;
+    private final ScheduledExecutorService snapshotter;
+    // sends the replies of durable records, off the log writer thread
+    private final ExecutorService replies;
+    // merges the late votes of the time indexes, off the log writer thread
+    private final ExecutorService indexer;
+    private final Metrics.Histogram snapshot_time;
+    private long snapshot_position = -1;
+    private volatile HashRing ring;
+    private volatile int self;
+    private final FrameServer frames;
+    private final boolean faults;
+    private volatile long fault_delay = 0;
+    private volatile boolean fault_drop_alive = false;
+    private final Metrics metrics = new Metrics();
+    private final Metrics.Histogram[] op_latency = new Metrics.Histogram[Protocol.OP_BATCH_STORE + 1];
+    private final Metrics.Counter stored;
+    private final Metrics.Counter duplicates;
+    private final Metrics.Counter failed;
 
-    private class VoteEntry {
-        final short candidate;
-        final long timestamp;
+    /**
+     * Receives the records of a fragment in frames, returns false to stop.
+     */
+    interface ChunkSink {
 
-        VoteEntry(short candidate, long timestamp) {
-            this.candidate = candidate;
-            this.timestamp = timestamp;
+        boolean accept(byte[] chunk, int length);
+    }
+
+    /**
+     * A /results long poll, answered as soon as one of its fragments gets
+     * a vote or when its wait expires.
+     */
+    private class ResultsWaiter {
+
+        final FrameServer.Reply reply;
+        final long epoch;
+        final short[] fragments;
+        final long[] known;
+        final AtomicBoolean done = new AtomicBoolean(false);
+
+        ResultsWaiter(FrameServer.Reply reply, long epoch, int fragments) {
+            this.reply = reply;
+            this.epoch = epoch;
+            this.fragments = new short[fragments];
+            this.known = new long[fragments];
         }
     }
 
-    Server(String path, String[] worker_addr, int numcandidates, int port)
+    Server(String path, String[] worker_addr, int numcandidates, int partitions,
+            int replication, int vnodes, int port, long sync_interval,
+            WorkerClient client, AdmissionControl admission, boolean virtual,
+            int frame_port, boolean faults, int writer_batch, long writer_linger,
+            boolean fsync, int segment_size, long snapshot_interval)
             throws IOException, URISyntaxException {
-        this.writeQueue = new ArrayBlockingQueue<>(1, true);
+        this.faults = faults;
+        this.notifier = Threads.scheduled(virtual, 1);
+        this.anti_entropy = Threads.scheduled(virtual, 1);
+        this.snapshotter = Threads.scheduled(virtual, 1);
+        this.replies = Threads.cached(virtual);
+        this.indexer = Threads.fixed(virtual, 1);
+        this.snapshot_interval = snapshot_interval;
+        this.worker_addr = worker_addr;
+        this.client = client;
+        this.port = port;
+        this.partitions = partitions;
+        this.replication = replication;
+        this.vnodes = vnodes;
+        this.sync_interval = sync_interval;
+        this.merkle = new MerkleTree(partitions);
+        this.ring = new HashRing(worker_addr, vnodes, partitions, replication);
+        this.self = selfId(worker_addr, port);
+        this.numcandidates = numcandidates;
         this.data_path = path + "/data.bin";
-        int num_workers = worker_addr.length;
-        this.voteResults = new AtomicLongArray[num_workers];
-        this.voteMap = new ConcurrentHashMap[num_workers];
-        for (int i = 0; i < num_workers; i++) {
-            this.voteMap[i] = new ConcurrentHashMap<>();
+        this.log = new SegmentLog(Paths.get(path, "votes"), segment_size);
+        this.writer = new LogWriter(log, writer_batch, writer_linger, fsync, metrics);
+        this.snapshots = new Snapshots(Paths.get(path, "snapshots"), partitions);
+        this.pending = new ClaimSet[partitions];
+        this.voteResults = new AtomicLongArray[partitions];
+        this.voteMap = new VoteTable[partitions];
+        this.voteTimes = new TimeIndex[partitions];
+        this.voteVersions = new AtomicLongArray(partitions);
+        for (int i = 0; i < partitions; i++) {
+            this.voteMap[i] = new VoteTable();
+            this.voteTimes[i] = new TimeIndex(indexer);
             this.voteResults[i] = new AtomicLongArray(numcandidates);
+            this.pending[i] = new ClaimSet();
         }
 
+        String[] ops = {null, "store", "results", "alive", "resolve", "batch_store"};
+        for (int op = 1; op < op_latency.length; op++) {
+            op_latency[op] = metrics.histogram("dvote_frame_request_seconds",
+                    "Latency of the binary transport requests", Metrics.label("op", ops[op]));
+        }
+        String help = "Records received by the worker, by result";
+        stored = metrics.counter("dvote_records_total", help, Metrics.label("result", "stored"));
+        duplicates = metrics.counter("dvote_records_total", help, Metrics.label("result", "duplicate"));
+        failed = metrics.counter("dvote_records_total", help, Metrics.label("result", "failed"));
+        snapshot_time = metrics.histogram("dvote_snapshot_seconds",
+                "Time taken to write a snapshot of the votes", "");
+        metrics.gauge("dvote_stored_votes", "Votes held in the vote tables", "", () -> {
+            long size = 0;
+            for (VoteTable fragment : voteMap) {
+                size += fragment.size();
+            }
+            return size;
+        });
+        metrics.gauge("dvote_results_waiters", "Parked /results long polls", "",
+                () -> waiters.size());
+
         int threads = Runtime.getRuntime().availableProcessors();
-        Executor default_executor = Executors.newFixedThreadPool(threads);
+        Executor default_executor = admission.executor(threads, virtual);
 
-        HttpHandler store_data = (HttpExchange ht) -> {
-            byte[] buffer = new byte[row_len];
+        HttpHandler store_data = (HttpExchange ht) ->
+                store(readBody(ht.getRequestBody()), reply(ht));
 
-            InputStream input = ht.getRequestBody();
-            input.read(buffer);
+        HttpHandler results = (HttpExchange ht) ->
+                results(readBody(ht.getRequestBody()), reply(ht));
 
-            ByteBuffer bf = ByteBuffer.wrap(buffer);
-            short worker = bf.getShort();
-            int voter = bf.getInt();
-            short vote = bf.getShort();
-            long timestamp = bf.getLong();
+        HttpHandler alive = (HttpExchange ht) -> {
+            if (fault_drop_alive) {
+                // no response, the connection is dropped
+                ht.close();
+                return;
+            }
+            reply(ht).send(200, OK);
+        };
 
+        HttpHandler fault = (HttpExchange ht) -> {
+            String[] command = new String(readBody(ht.getRequestBody()),
+                    StandardCharsets.UTF_8).trim().split("=", 2);
             int responseCode = 200;
-            if (voteMap[worker].containsKey(voter)) {
-                responseCode = 400;
-            } else {
-                try {
-                    writeQueue.put(bf);
-                    voteMap[worker].put(voter, new Server.VoteEntry(vote, timestamp));
-                    voteResults[worker].getAndIncrement(vote);
-                } catch (Exception ex) {
-                    LOGGER.log(Level.SEVERE, null, ex);
-                    responseCode = 507;
+            try {
+                switch (command[0]) {
+                    case "delay":
+                        fault_delay = Long.parseLong(command[1]);
+                        break;
+                    case "alive":
+                        fault_drop_alive = "drop".equals(command[1]);
+                        break;
+                    case "clear":
+                        fault_delay = 0;
+                        fault_drop_alive = false;
+                        break;
+                    default:
+                        responseCode = 400;
+                        break;
                 }
+            } catch (RuntimeException ex) {
+                responseCode = 400;
             }
+            LOGGER.log(Level.WARNING, "Fault injection: delay={0} ms, alive {1}",
+                    new Object[]{fault_delay, fault_drop_alive ? "dropped" : "answered"});
+            reply(ht).send(responseCode, responseCode == 200 ? OK : new byte[0]);
+        };
 
-            String message;
-            switch (responseCode) {
-                case 200:
-                    message = "OK";
-                    break;
-                case 507:
-                    message = "I/O Error";
-                    break;
-                default:
-                    message = "Already exists";
-                    break;
+        HttpHandler resolve = (HttpExchange ht) ->
+                resolve(readBody(ht.getRequestBody()), reply(ht));
+
+        HttpHandler batch_store = (HttpExchange ht) ->
+                batchStore(readBody(ht.getRequestBody()), reply(ht));
+
+        HttpHandler voters = (HttpExchange ht) -> {
+            DataInputStream dis = new DataInputStream(ht.getRequestBody());
+            int fragments = dis.readShort();
+            short[] data_ids = new short[fragments];
+            for (int f = 0; f < fragments; f++) {
+                data_ids[f] = dis.readShort();
             }
-            try (OutputStream res = ht.getResponseBody()) {
-                ht.sendResponseHeaders(responseCode, message.length());
-                res.write(message.getBytes());
+            ht.sendResponseHeaders(200, 0);
+            try (DataOutputStream res = new DataOutputStream(
+                    new BufferedOutputStream(ht.getResponseBody()))) {
+                for (short data_id : data_ids) {
+                    voteMap[data_id].forEach((voter, candidate, timestamp) -> {
+                        try {
+                            res.writeInt(voter);
+                        } catch (IOException ex) {
+                            throw new UncheckedIOException(ex);
+                        }
+                    });
+                }
+            } catch (UncheckedIOException ex) {
+                throw ex.getCause();
             }
         };
 
-        HttpHandler results = (HttpExchange ht) -> {
+        HttpHandler merkle_roots = (HttpExchange ht) -> {
             DataInputStream dis = new DataInputStream(ht.getRequestBody());
-            short data_index = dis.readShort();
-            StringBuilder sb = new StringBuilder();
-            sb.append(voteResults[data_index].get(0));
-            for (int i = 1; i < numcandidates; i++) {
-                sb.append(",").append(voteResults[data_index].get(i));
+            int fragments = dis.readShort();
+            ByteBuffer message = ByteBuffer.allocate(fragments * Long.BYTES);
+            for (int f = 0; f < fragments; f++) {
+                message.putLong(merkle.root(dis.readShort()));
             }
-            String message = sb.toString();
             try (OutputStream res = ht.getResponseBody()) {
-                ht.sendResponseHeaders(200, message.length());
-                res.write(message.getBytes());
+                ht.sendResponseHeaders(200, message.capacity() > 0 ? message.capacity() : -1);
+                res.write(message.array());
             }
         };
 
-        HttpHandler alive = (HttpExchange ht) -> {
-            String message = "OK";
+        HttpHandler merkle_nodes = (HttpExchange ht) -> {
+            DataInputStream dis = new DataInputStream(ht.getRequestBody());
+            int nodes = dis.readInt();
+            ByteBuffer message = ByteBuffer.allocate(nodes * MerkleTree.FANOUT * Long.BYTES);
+            for (int n = 0; n < nodes; n++) {
+                short data_id = dis.readShort();
+                short node = dis.readShort();
+                for (int i = 0; i < MerkleTree.FANOUT; i++) {
+                    message.putLong(merkle.node(data_id, MerkleTree.descendant(node, i)));
+                }
+            }
             try (OutputStream res = ht.getResponseBody()) {
-                ht.sendResponseHeaders(200, message.length());
-                res.write(message.getBytes());
+                ht.sendResponseHeaders(200, message.capacity() > 0 ? message.capacity() : -1);
+                res.write(message.array());
             }
         };
 
-        HttpHandler resolve = (HttpExchange ht) -> {
-            DataInputStream ds = new DataInputStream(ht.getRequestBody());
-            short to_worker = ds.readShort();
-            short data_id = ds.readShort();
-            long start_time = ds.readLong();
-            long end_time = ds.readLong();
-
-            ArrayList<ByteBuffer> toBeSent = new ArrayList<>();
-
-            voteMap[data_id].forEach((Integer voter, Server.VoteEntry vote_pair) -> {
-                long vote_timestamp = vote_pair.timestamp;
-                if (vote_timestamp > start_time && vote_timestamp < end_time) {
-                    ByteBuffer bf = ByteBuffer.allocate(row_len)
-                            .putShort(data_id)
-                            .putInt(voter)
-                            .putShort(vote_pair.candidate)
-                            .putLong(vote_timestamp);
-                    toBeSent.add(bf);
-                }
-            });
-
-            int responseCode = 200;
-            if (toBeSent.size() > 0) {
-                byte[] message = new byte[toBeSent.size() * row_len];
-                int row = 0;
-                for (ByteBuffer bf : toBeSent) {
-                    bf.get(message, row * row_len, row_len);
-                    row++;
-                }
-                responseCode = POST("http://" + worker_addr[to_worker]
-                        + ":" + port + "/batch_store", message);
+        HttpHandler merkle_records = (HttpExchange ht) -> {
+            DataInputStream dis = new DataInputStream(ht.getRequestBody());
+            int leaves = dis.readInt();
+            ByteArrayOutputStream records = new ByteArrayOutputStream();
+            for (int l = 0; l < leaves; l++) {
+                short data_id = dis.readShort();
+                short leaf = dis.readShort();
+                leafRecords(data_id, leaf, records);
             }
-            String message = responseCode == 200 ? "OK" : "Batch load failed";
             try (OutputStream res = ht.getResponseBody()) {
-                ht.sendResponseHeaders(responseCode, message.length());
-                res.write(message.getBytes());
+                ht.sendResponseHeaders(200, records.size() > 0 ? records.size() : -1);
+                records.writeTo(res);
             }
         };
 
-        HttpHandler batch_store = (HttpExchange ht) -> {
-            ByteBuffer bf;
-            byte[] buffer = new byte[row_len];
-            int voter, responseCode = 200;
-            long timestamp;
-            short worker, vote;
-
-            InputStream input = ht.getRequestBody();
-            while (input.read(buffer) != -1) {
-                bf = ByteBuffer.wrap(buffer);
-                worker = bf.getShort();
-                voter = bf.getInt();
-                vote = bf.getShort();
-                timestamp = bf.getLong();
-                try {
-                    writeQueue.put(bf);
-                    voteMap[worker].put(voter, new Server.VoteEntry(vote, timestamp));
-                    voteResults[worker].getAndIncrement(vote);
-                } catch (Exception ex) {
-                    LOGGER.log(Level.SEVERE, null, ex);
-                    responseCode = 507;
+        HttpHandler membership = (HttpExchange ht) -> {
+            String[] members = new String(readBody(ht.getRequestBody())).split(",", -1);
+            for (int i = 0; i < members.length; i++) {
+                if (members[i].isEmpty()) {
+                    members[i] = null;
                 }
             }
-            String message = responseCode == 200 ? "OK" : "Batch load failed";
+            this.worker_addr = members;
+            this.ring = new HashRing(members, vnodes, partitions, replication);
+            this.self = selfId(members, port);
+            LOGGER.log(Level.INFO, "Cluster members: {0}", Arrays.toString(members));
+            if (sync_interval > 0) {
+                // sent on revival and on resize, catch up with the peers
+                anti_entropy.execute(this::synchronize);
+            }
+            String message = "OK";
             try (OutputStream res = ht.getResponseBody()) {
-                ht.sendResponseHeaders(responseCode, message.length());
+                ht.sendResponseHeaders(200, message.length());
                 res.write(message.getBytes());
             }
         };
 
         server = HttpServer.create(new InetSocketAddress(port), 0);
-        server.createContext("/store", store_data);
-        server.createContext("/results", results);
-        server.createContext("/alive", alive);
-        server.createContext("/resolve", resolve);
-        server.createContext("/batch_store", batch_store);
+        context("/store", store_data, admission.limitFilter());
+        context("/results", results, admission.overflowFilter());
+        // reserved lane, probes are answered even when the queue is full
+        context("/alive", alive, null);
+        context("/resolve", resolve, admission.overflowFilter());
+        context("/batch_store", batch_store, admission.limitFilter());
+        context("/membership", membership, admission.overflowFilter());
+        context("/voters", voters, admission.overflowFilter());
+        context("/merkle/roots", merkle_roots, admission.overflowFilter());
+        context("/merkle/nodes", merkle_nodes, admission.overflowFilter());
+        context("/merkle/records", merkle_records, admission.overflowFilter());
+        context("/metrics", metrics.handler(), admission.overflowFilter());
+        if (faults) {
+            // test clusters only, see fault.injection
+            server.createContext("/fault", fault);
+        }
         server.setExecutor(default_executor);
+        // internal traffic, already bounded by the master's admission
+        this.frames = frame_port > 0 ? new FrameServer(frame_port, this::frame,
+                Threads.fixed(virtual, threads)) : null;
         LOGGER.log(Level.INFO, "Server ready at {0}", String.valueOf(port));
     }
 
-    private int POST(String url_str, byte[] message) {
+    /**
+     * Creates a context whose requests are timed, a null admission filter
+     * leaves the context unbounded.
+     */
+    private void context(String path, HttpHandler handler, Filter admission) {
+        List<Filter> filters = server.createContext(path, handler).getFilters();
+        filters.add(metrics.timer(metrics.histogram("dvote_http_request_seconds",
+                "Latency of the http handlers", Metrics.label("handler", path))));
+        if (admission != null) {
+            filters.add(admission);
+        }
+        if (faults && !"/alive".equals(path) && !"/metrics".equals(path)) {
+            filters.add(new Filter() {
+                @Override
+                public void doFilter(HttpExchange ht, Chain chain) throws IOException {
+                    injectDelay();
+                    chain.doFilter(ht);
+                }
+
+                @Override
+                public String description() {
+                    return "Injected latency";
+                }
+            });
+        }
+    }
+
+    private void injectDelay() {
+        long delay = fault_delay;
+        if (delay > 0) {
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private int POST(String host, int port, String uri, byte[] message) {
         try {
-            URL url = new URL(url_str);
-            HttpURLConnection con = (HttpURLConnection) url.openConnection();
-            con.setDoOutput(true);
-            con.setUseCaches(false);
-            con.setRequestMethod("POST");
-            con.setRequestProperty("Content-Length", String.valueOf(message.length));
-            con.setRequestProperty("Content-Type", "default/binary");
-            try (OutputStream out = con.getOutputStream()) {
-                out.write(message);
-                out.flush();
-            }
-            con.connect();
-            int tmp = con.getResponseCode();
-            con.disconnect();
-            return tmp;
-        } catch (Exception ex) {
+            return client.post(host, port, uri, message).status;
+        } catch (IOException ex) {
             LOGGER.log(Level.SEVERE, null, ex);
         }
         return 500;
     }
 
-    private boolean loadData() {
-        File file = new File(data_path);
-        if (!file.exists()) {
+    void store(byte[] record, FrameServer.Reply reply) {
+        ByteBuffer bf = ByteBuffer.wrap(record);
+        short worker = bf.getShort();
+        int voter = bf.getInt();
+        short vote = bf.getShort();
+        long timestamp = bf.getLong();
+
+        if (!reserve(worker, voter)) {
+            duplicates.inc();
+            reply.send(400, ALREADY_EXISTS);
+            return;
+        }
+        try {
+            writer.append(record, 0, row_len, durable -> {
+                if (durable) {
+                    apply(worker, voter, vote, timestamp);
+                    stored.inc();
+                    replies.execute(() -> reply.send(200, OK));
+                } else {
+                    pending[worker].remove(voter);
+                    failed.inc();
+                    replies.execute(() -> reply.send(507, IO_ERROR));
+                }
+            });
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            pending[worker].remove(voter);
+            failed.inc();
+            reply.send(507, IO_ERROR);
+        }
+    }
+
+    /**
+     * Claims a voter for a record on its way to the log, false if the
+     * voter is stored or claimed already. The claim comes first, so a
+     * record applied in between is seen by the check that follows it.
+     */
+    private boolean reserve(short data_id, int voter) {
+        if (!pending[data_id].add(voter)) {
+            return false;
+        }
+        if (voteMap[data_id].contains(voter)) {
+            pending[data_id].remove(voter);
             return false;
         }
+        return true;
+    }
+
+    /**
+     * Makes a durable record visible, in the vote map before the claim is
+     * released.
+     */
+    private void apply(short data_id, int voter, short candidate, long timestamp) {
+        boolean added = voteMap[data_id].putIfAbsent(voter, candidate, timestamp);
+        pending[data_id].remove(voter);
+        if (added) {
+            voteTimes[data_id].add(timestamp, voter, candidate);
+            countVote(data_id, voter, candidate);
+        }
+    }
+
+    /**
+     * Answers right away when a fragment changed since the versions the
+     * master holds, or else parks the request until one changes or its
+     * wait expires.
+     */
+    void results(byte[] request, FrameServer.Reply reply) throws IOException {
+        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(request));
+        int fragments = dis.readShort();
+        int wait = dis.readInt();
+        ResultsWaiter waiter = new ResultsWaiter(reply, dis.readLong(), fragments);
+        boolean changed = waiter.epoch != epoch;
+        for (int f = 0; f < fragments; f++) {
+            waiter.fragments[f] = dis.readShort();
+            waiter.known[f] = dis.readLong();
+            changed |= voteVersions.get(waiter.fragments[f]) != waiter.known[f];
+        }
+        if (changed || wait <= 0) {
+            answer(waiter);
+            return;
+        }
+        waiters.add(waiter);
+        notifier.schedule(() -> answer(waiter), wait, TimeUnit.MILLISECONDS);
+        // a vote may have been counted before the waiter was registered
+        for (int f = 0; f < fragments; f++) {
+            if (voteVersions.get(waiter.fragments[f]) != waiter.known[f]) {
+                answer(waiter);
+                break;
+            }
+        }
+    }
+
+    /**
+     * Streams the votes of a fragment stored strictly between two
+     * timestamps to another worker and answers with how many were sent and
+     * the newest timestamp among them.
+     */
+    private void resolve(byte[] request, FrameServer.Reply reply) {
+        ByteBuffer ds = ByteBuffer.wrap(request);
+        short to_worker = ds.getShort();
+        short data_id = ds.getShort();
+        long start_time = ds.getLong();
+        long end_time = ds.getLong();
+
+        String[] members = worker_addr;
+        if (to_worker >= members.length || members[to_worker] == null) {
+            reply.send(500, BATCH_LOAD_FAILED);
+            return;
+        }
+        long[] newest = {Long.MIN_VALUE};
+        long sent = streamRange(data_id, start_time, end_time, (chunk, length) -> {
+            ByteBuffer records = ByteBuffer.wrap(chunk);
+            for (int at = row_len - Long.BYTES; at < length; at += row_len) {
+                newest[0] = Math.max(newest[0], records.getLong(at));
+            }
+            return POST(members[to_worker], port, "/batch_store", length == chunk.length
+                    ? chunk : Arrays.copyOf(chunk, length)) == 200;
+        });
+        if (sent < 0) {
+            reply.send(500, BATCH_LOAD_FAILED);
+            return;
+        }
+        // the number of votes sent and the newest of them
+        reply.send(200, ByteBuffer.allocate(2 * Long.BYTES).putLong(sent)
+                .putLong(newest[0]).array());
+    }
 
-        int rows = 0;
-        int read, bufsize = 256 * row_len;
-        byte[] file_buffer = new byte[bufsize];
-        try (FileInputStream fin = new FileInputStream(data_path)) {
-            while ((read = fin.read(file_buffer)) != -1) {
-                ByteBuffer data = ByteBuffer.wrap(file_buffer);
-                for (int i = read; i > 0; i -= row_len) {
-                    rows++;
-                    short data_id = data.getShort();
-                    int voter = data.getInt();
-                    short candidate = data.getShort();
-                    long timestamp = data.getLong();
-                    voteMap[data_id].put(voter,
-                            new VoteEntry(candidate, timestamp));
-                    voteResults[data_id].incrementAndGet(candidate);
+    /**
+     * Passes the records of a fragment stored strictly between two
+     * timestamps, found through its time index, to {@code sink} in frames of RESOLVE_CHUNK,
+     * instead of holding them all, and returns how many were sent or -1 if
+     * the sink stopped.
+     */
+    long streamRange(short data_id, long start_time, long end_time, ChunkSink sink) {
+        byte[] chunk = new byte[RESOLVE_CHUNK * row_len];
+        ByteBuffer bf = ByteBuffer.wrap(chunk);
+        // -1 once the sink stopped
+        long[] sent = {0};
+        voteTimes[data_id].range(start_time, end_time, (voter, candidate, vote_timestamp) -> {
+            if (sent[0] < 0) {
+                return;
+            }
+            bf.putShort(data_id).putInt(voter).putShort(candidate).putLong(vote_timestamp);
+            if (!bf.hasRemaining()) {
+                if (!sink.accept(chunk, chunk.length)) {
+                    sent[0] = -1;
+                    return;
+                }
+                sent[0] += RESOLVE_CHUNK;
+                bf.clear();
+            }
+        });
+        if (sent[0] < 0) {
+            return -1;
+        }
+        if (bf.position() > 0) {
+            if (!sink.accept(chunk, bf.position())) {
+                return -1;
+            }
+            sent[0] += bf.position() / row_len;
+        }
+        return sent[0];
+    }
+
+    private void batchStore(byte[] frame, FrameServer.Reply reply) {
+        storeRecords(frame).thenAccept(status -> {
+            int responseCode = 200;
+            for (byte record : status) {
+                if (record == Protocol.FAILED) {
+                    responseCode = 507;
                 }
             }
-            LOGGER.log(Level.INFO, "Previous data loaded: {0} rows", rows);
+            reply.send(responseCode, status);
+        });
+    }
+
+    /**
+     * Runs a request of the binary transport through the handler of the
+     * http endpoint with the same name.
+     */
+    private void frame(byte op, byte[] payload, FrameServer.Reply frame_reply) {
+        FrameServer.Reply reply = frame_reply;
+        if (op > 0 && op < op_latency.length) {
+            Metrics.Histogram latency = op_latency[op];
+            long started = System.nanoTime();
+            reply = (status, body) -> {
+                latency.since(started);
+                frame_reply.send(status, body);
+            };
+        }
+        if (op != Protocol.OP_ALIVE) {
+            injectDelay();
+        }
+        try {
+            switch (op) {
+                case Protocol.OP_STORE:
+                    store(payload, reply);
+                    break;
+                case Protocol.OP_RESULTS:
+                    results(payload, reply);
+                    break;
+                case Protocol.OP_ALIVE:
+                    if (!fault_drop_alive) {
+                        reply.send(200, OK);
+                    }
+                    break;
+                case Protocol.OP_RESOLVE:
+                    resolve(payload, reply);
+                    break;
+                case Protocol.OP_BATCH_STORE:
+                    batchStore(payload, reply);
+                    break;
+                default:
+                    reply.send(400, new byte[0]);
+                    break;
+            }
+        } catch (IOException | RuntimeException ex) {
+            LOGGER.log(Level.WARNING, null, ex);
+            reply.send(500, new byte[0]);
+        }
+    }
+
+    private static FrameServer.Reply reply(HttpExchange ht) {
+        return (status, body) -> {
+            try (OutputStream res = ht.getResponseBody()) {
+                ht.sendResponseHeaders(status, body.length > 0 ? body.length : -1);
+                res.write(body);
+            } catch (IOException ex) {
+                LOGGER.log(Level.WARNING, null, ex);
+            }
+        };
+    }
+
+    /**
+     * Stores the records of a /batch_store frame that are not stored yet
+     * with a single append, and completes with one status byte per record
+     * once they are durable.
+     */
+    CompletableFuture<byte[]> storeRecords(byte[] body) {
+        int records = body.length / row_len;
+        byte[] status = new byte[records];
+        byte[] claimed = new byte[body.length];
+        int[] rows = new int[records];
+        int count = 0;
+        ByteBuffer bf = ByteBuffer.wrap(body);
+        for (int row = 0; row < records; row++) {
+            short worker = bf.getShort(row * row_len);
+            int voter = bf.getInt(row * row_len + Short.BYTES);
+            if (!reserve(worker, voter)) {
+                duplicates.inc();
+                status[row] = Protocol.EXISTS;
+                continue;
+            }
+            System.arraycopy(body, row * row_len, claimed, count * row_len, row_len);
+            rows[count++] = row;
+        }
+        CompletableFuture<byte[]> result = new CompletableFuture<>();
+        if (count == 0) {
+            result.complete(status);
+            return result;
+        }
+        int claims = count;
+        LogWriter.Done done = durable -> {
+            ByteBuffer record = ByteBuffer.wrap(claimed);
+            for (int i = 0; i < claims; i++) {
+                short worker = record.getShort();
+                int voter = record.getInt();
+                short vote = record.getShort();
+                long timestamp = record.getLong();
+                if (durable) {
+                    apply(worker, voter, vote, timestamp);
+                    stored.inc();
+                    status[rows[i]] = Protocol.STORED;
+                } else {
+                    pending[worker].remove(voter);
+                    failed.inc();
+                    status[rows[i]] = Protocol.FAILED;
+                }
+            }
+            // the dependent replies run off the writer thread
+            replies.execute(() -> result.complete(status));
+        };
+        try {
+            writer.append(claimed, 0, claims * row_len, done);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            done.done(false);
+        }
+        return result;
+    }
+
+    /**
+     * Writes the records of a leaf of a fragment, read from its hash range
+     * of the vote table.
+     */
+    private void leafRecords(short data_id, int leaf, ByteArrayOutputStream records) {
+        ByteBuffer bf = ByteBuffer.allocate(row_len);
+        voteMap[data_id].forEach(leaf, MerkleTree.LEAF_BITS, (voter, candidate, timestamp) -> {
+            bf.clear();
+            bf.putShort(data_id).putInt(voter)
+                    .putShort(candidate).putLong(timestamp);
+            records.write(bf.array(), 0, row_len);
+        });
+    }
+
+    /**
+     * One anti-entropy round: compares the hash trees of every fragment this
+     * worker stores with the other replicas of the fragment, descending
+     * from the roots that differ to the leaves that differ, and exchanges
+     * the votes of those leaves in both directions.
+     */
+    private void synchronize() {
+        int me = self;
+        HashRing current = ring;
+        String[] members = worker_addr;
+        if (me < 0 || !current.isMember(me)) {
+            return;
+        }
+        List<List<Short>> shared = new ArrayList<>();
+        for (int wid = 0; wid < members.length; wid++) {
+            shared.add(new ArrayList<>());
+        }
+        for (int data_id : current.partitionsOf(me)) {
+            for (int wid : current.replicas(data_id)) {
+                if (wid != me && wid < members.length) {
+                    shared.get(wid).add((short) data_id);
+                }
+            }
+        }
+        long repaired = 0;
+        for (int wid = 0; wid < members.length; wid++) {
+            if (members[wid] == null || shared.get(wid).isEmpty()) {
+                continue;
+            }
+            try {
+                repaired += synchronize(members[wid], shared.get(wid));
+            } catch (IOException | RuntimeException ex) {
+                LOGGER.log(Level.WARNING, "Anti-entropy with {0} failed: {1}",
+                        new Object[]{members[wid], ex.toString()});
+            }
+        }
+        if (repaired > 0) {
+            LOGGER.log(Level.INFO, "Anti-entropy repaired {0} votes", repaired);
+        }
+    }
+
+    private long synchronize(String peer, List<Short> fragments) throws IOException {
+        ByteBuffer request = ByteBuffer.allocate(Short.BYTES * (fragments.size() + 1))
+                .putShort((short) fragments.size());
+        fragments.forEach(request::putShort);
+        ByteBuffer roots = ByteBuffer.wrap(post(peer, "/merkle/roots", request.array()));
+        // the differing nodes of a level, data_id and node of each
+        List<short[]> differ = new ArrayList<>();
+        for (short data_id : fragments) {
+            if (roots.getLong() != merkle.root(data_id)) {
+                differ.add(new short[]{data_id, 1});
+            }
+        }
+        while (!differ.isEmpty() && !MerkleTree.isLeaf(differ.get(0)[1])) {
+            ByteBuffer parents = ByteBuffer.allocate(Integer.BYTES
+                    + differ.size() * 2 * Short.BYTES).putInt(differ.size());
+            for (short[] node : differ) {
+                parents.putShort(node[0]).putShort(node[1]);
+            }
+            ByteBuffer nodes = ByteBuffer.wrap(post(peer, "/merkle/nodes", parents.array()));
+            List<short[]> below = new ArrayList<>();
+            for (short[] node : differ) {
+                for (int i = 0; i < MerkleTree.FANOUT; i++) {
+                    int descendant = MerkleTree.descendant(node[1], i);
+                    if (nodes.getLong() != merkle.node(node[0], descendant)) {
+                        below.add(new short[]{node[0], (short) descendant});
+                    }
+                }
+            }
+            differ = below;
+        }
+        if (differ.isEmpty()) {
+            return 0;
+        }
+
+        ByteArrayOutputStream ours = new ByteArrayOutputStream();
+        ByteBuffer wanted = ByteBuffer.allocate(Integer.BYTES + differ.size() * 2 * Short.BYTES)
+                .putInt(differ.size());
+        for (short[] node : differ) {
+            short leaf = (short) (node[1] - MerkleTree.LEAVES);
+            wanted.putShort(node[0]).putShort(leaf);
+            leafRecords(node[0], leaf, ours);
+        }
+
+        long repaired = 0;
+        if (ours.size() > 0) {
+            for (byte status : post(peer, "/batch_store", ours.toByteArray())) {
+                repaired += status == Protocol.STORED ? 1 : 0;
+            }
+        }
+        byte[] theirs = post(peer, "/merkle/records", wanted.array());
+        for (byte status : storeRecords(theirs).join()) {
+            repaired += status == Protocol.STORED ? 1 : 0;
+        }
+        return repaired;
+    }
+
+    private byte[] post(String host, String uri, byte[] message) throws IOException {
+        // the hash tree reads are safe to send again on a new connection
+        WorkerClient.Response res = client.post(host, port, uri, message,
+                uri.startsWith("/merkle/"));
+        if (res.status != 200 && res.status != 507) {
+            throw new IOException(uri + " answered " + res.status);
+        }
+        return res.body;
+    }
+
+    /**
+     * The id of this worker in a member list, the entry on a local address
+     * with this server's port, or -1 if there is none.
+     */
+    private static int selfId(String[] members, int port) {
+        for (int wid = 0; wid < members.length; wid++) {
+            if (members[wid] == null) {
+                continue;
+            }
+            String host = members[wid];
+            int member_port = port;
+            int colon = host.lastIndexOf(':');
+            if (colon >= 0) {
+                member_port = Integer.parseInt(host.substring(colon + 1));
+                host = host.substring(0, colon);
+            }
+            if (member_port != port) {
+                continue;
+            }
+            try {
+                InetAddress address = InetAddress.getByName(host);
+                if (address.isLoopbackAddress() || address.isAnyLocalAddress()
+                        || NetworkInterface.getByInetAddress(address) != null) {
+                    return wid;
+                }
+            } catch (IOException ex) {
+                LOGGER.log(Level.FINE, null, ex);
+            }
+        }
+        return -1;
+    }
+
+    private void countVote(short data_id, int voter, short candidate) {
+        merkle.add(data_id, voter, candidate);
+        voteResults[data_id].getAndIncrement(candidate);
+        voteVersions.incrementAndGet(data_id);
+        if (waiters.isEmpty()) {
+            return;
+        }
+        for (ResultsWaiter waiter : waiters) {
+            for (short fragment : waiter.fragments) {
+                if (fragment == data_id) {
+                    notifier.execute(() -> answer(waiter));
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes the version of every fragment of a /results request, followed
+     * by its counters when the version differs from the one the master
+     * already holds.
+     */
+    private void answer(ResultsWaiter waiter) {
+        if (!waiter.done.compareAndSet(false, true)) {
+            return;
+        }
+        waiters.remove(waiter);
+        int length = Long.BYTES;
+        long[] versions = new long[waiter.fragments.length];
+        for (int f = 0; f < versions.length; f++) {
+            versions[f] = voteVersions.get(waiter.fragments[f]);
+            length += Long.BYTES;
+            if (waiter.epoch != epoch || versions[f] != waiter.known[f]) {
+                length += numcandidates * Long.BYTES;
+            }
+        }
+        ByteBuffer message = ByteBuffer.allocate(length).putLong(epoch);
+        for (int f = 0; f < versions.length; f++) {
+            message.putLong(versions[f]);
+            if (waiter.epoch != epoch || versions[f] != waiter.known[f]) {
+                AtomicLongArray votes = voteResults[waiter.fragments[f]];
+                for (int i = 0; i < numcandidates; i++) {
+                    message.putLong(votes.get(i));
+                }
+            }
+        }
+        waiter.reply.send(200, message.array());
+    }
+
+    private static byte[] readBody(InputStream input) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int read;
+        while ((read = input.read(buffer)) != -1) {
+            body.write(buffer, 0, read);
+        }
+        return body.toByteArray();
+    }
+
+    /**
+     * Loads the newest snapshot and replays the log written after it on
+     * all cores.
+     */
+    boolean loadData() {
+        long rows = 0;
+        try {
+            File legacy = new File(data_path);
+            if (legacy.exists()) {
+                migrate(legacy);
+            }
+            Replay.Columns[] snapshot = new Replay.Columns[partitions];
+            long from = snapshots.load((data_id, voter, candidate, timestamp) -> {
+                if (snapshot[data_id] == null) {
+                    snapshot[data_id] = new Replay.Columns();
+                }
+                snapshot[data_id].add(voter, candidate, timestamp);
+            });
+            for (short data_id = 0; data_id < partitions; data_id++) {
+                if (snapshot[data_id] != null) {
+                    restore(data_id, new Replay.Columns[]{snapshot[data_id]}, snapshot[data_id].size);
+                    snapshot[data_id] = null;
+                }
+            }
+            snapshot_position = from;
+            if (from > 0) {
+                LOGGER.log(Level.INFO, "Snapshot at {0} loaded", from);
+            }
+            long started = System.nanoTime();
+            rows = new Replay(partitions, Runtime.getRuntime().availableProcessors())
+                    .run(log.blocks(from), this::restore);
+            long elapsed = Math.max(System.nanoTime() - started, 1);
+            LOGGER.log(Level.INFO, "Previous data loaded: {0} rows in {1} ms, {2} rows/s",
+                    new Object[]{rows, TimeUnit.NANOSECONDS.toMillis(elapsed),
+                        rows * TimeUnit.SECONDS.toNanos(1) / elapsed});
         } catch (Exception ex) {
             LOGGER.log(Level.SEVERE, null, ex);
             System.exit(1);
         }
 
-        return true;
+        return rows > 0 || snapshot_position > 0;
     }
 
-    void start() {
-        loadData();
-        writer.execute(() -> {
-            try (FileOutputStream fos = new FileOutputStream(data_path, true)) {
-                while (true) {
-                    ByteBuffer bf = writeQueue.take();
-                    fos.write(bf.array());
+    /**
+     * Applies the votes of a fragment from a snapshot or the log, into a
+     * table grown for them up front, with the counters added and the time
+     * index sorted once. The log after a snapshot may repeat votes the
+     * snapshot already holds.
+     */
+    private void restore(short data_id, Replay.Columns[] parts, int total) {
+        VoteTable map = voteMap[data_id];
+        map.ensureCapacity(total);
+        long[] counts = new long[numcandidates];
+        Replay.Columns indexed = new Replay.Columns();
+        long added = 0;
+        for (Replay.Columns part : parts) {
+            if (part == null) {
+                continue;
+            }
+            for (int i = 0; i < part.size; i++) {
+                int voter = part.voters[i];
+                short candidate = part.candidates[i];
+                if (map.putIfAbsent(voter, candidate, part.timestamps[i])) {
+                    indexed.add(voter, candidate, part.timestamps[i]);
+                    merkle.add(data_id, voter, candidate);
+                    counts[candidate]++;
+                    added++;
                 }
-            } catch (Exception ex) {
-                LOGGER.log(Level.SEVERE, null, ex);
-                System.exit(1);
             }
-        });
+        }
+        for (int candidate = 0; candidate < numcandidates; candidate++) {
+            if (counts[candidate] > 0) {
+                voteResults[data_id].addAndGet(candidate, counts[candidate]);
+            }
+        }
+        voteVersions.addAndGet(data_id, added);
+        voteTimes[data_id].addAll(indexed.timestamps, indexed.voters, indexed.candidates,
+                indexed.size);
+    }
+
+    /**
+     * Writes a snapshot of the votes, without stopping the stores, and
+     * deletes the log segments the kept snapshots cover. Every vote logged
+     * before the position is in the maps, the ones that come in during the
+     * snapshot are replayed from the log after it.
+     */
+    private void snapshot() {
+        long position = writer.applied();
+        if (position == snapshot_position) {
+            return;
+        }
+        long started = System.nanoTime();
+        try {
+            long votes = snapshots.write(position, out -> {
+                for (short data_id = 0; data_id < partitions; data_id++) {
+                    short fragment = data_id;
+                    voteMap[data_id].forEach((voter, candidate, timestamp) ->
+                            out.vote(fragment, voter, candidate, timestamp));
+                }
+            });
+            snapshot_position = position;
+            int deleted = log.deleteBefore(snapshots.retained());
+            snapshot_time.since(started);
+            LOGGER.log(Level.INFO, "Snapshot of {0} votes at {1} in {2} ms, {3} log segments deleted",
+                    new Object[]{votes, position,
+                        TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started), deleted});
+        } catch (IOException ex) {
+            LOGGER.log(Level.SEVERE, null, ex);
+        }
+    }
+
+    /**
+     * Moves the records of a data.bin written before the segmented log
+     * into the log, dropping a torn last record. Its rows were placed by
+     * {@code voter % workers}, so each one is moved to the partition the
+     * ring gives its voter.
+     */
+    private void migrate(File legacy) throws IOException {
+        long rows = 0;
+        byte[] chunk = new byte[4096 * row_len];
+        try (InputStream in = new FileInputStream(legacy)) {
+            int filled = 0, read;
+            while ((read = in.read(chunk, filled, chunk.length - filled)) != -1) {
+                filled += read;
+                if (filled == chunk.length) {
+                    repartition(chunk, filled);
+                    log.append(chunk, 0, filled);
+                    rows += filled / row_len;
+                    filled = 0;
+                }
+            }
+            int whole = filled - filled % row_len;
+            if (whole > 0) {
+                repartition(chunk, whole);
+                log.append(chunk, 0, whole);
+                rows += whole / row_len;
+            }
+            if (whole < filled) {
+                LOGGER.log(Level.WARNING, "Dropped a torn record of {0} bytes at the end of {1}",
+                        new Object[]{filled - whole, legacy});
+            }
+        }
+        log.commit(true);
+        Files.delete(legacy.toPath());
+        LOGGER.log(Level.INFO, "Moved {0} rows from {1} to the log", new Object[]{rows, legacy});
+    }
+
+    private void repartition(byte[] rows, int length) {
+        ByteBuffer records = ByteBuffer.wrap(rows, 0, length);
+        for (int at = 0; at < length; at += row_len) {
+            records.putShort(at, (short) ring.partition(records.getInt(at + Short.BYTES)));
+        }
+    }
+
+    void start() {
+        loadData();
+        writer.start();
         server.start();
+        if (frames != null) {
+            frames.start();
+        }
+        if (snapshot_interval > 0) {
+            snapshotter.scheduleWithFixedDelay(this::snapshot,
+                    snapshot_interval, snapshot_interval, TimeUnit.MILLISECONDS);
+        }
+        if (sync_interval > 0) {
+            // the first round catches up with the votes missed while down
+            anti_entropy.scheduleWithFixedDelay(this::synchronize,
+                    0, sync_interval, TimeUnit.MILLISECONDS);
+        }
     }
 
     void stop() {
-        writer.shutdownNow();
+        anti_entropy.shutdownNow();
+        snapshotter.shutdownNow();
+        notifier.shutdownNow();
         server.stop(0);
+        if (frames != null) {
+            frames.stop();
+        }
+        writer.close();
+        replies.shutdown();
+        indexer.shutdown();
+        log.close();
+        client.close();
     }
 }
@@ -0,0 +1,228 @@
+/*
+ * Copyright (C) 2016 theofilos
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.thmour.dvote;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Snapshots of a worker's votes, each named after the log position it
+ * covers. A snapshot holds the votes in the log's record format, behind a
+ * header with the position and the number of fragments, and ends with a
+ * CRC-32C of the file. It is written to a temporary file and renamed once
+ * forced, and the last {@link #KEEP} are kept so a damaged one falls back
+ * to the one before it.
+ * <p>
+ * The votes are read while they change, so a snapshot holds every vote
+ * logged before its position and maybe some after it. Replaying the log
+ * from the position with put-if-absent brings the votes back exactly.
+ *
+ * @author theofilos
+ */
+class Snapshots {
+
+    private static final Logger LOGGER = Logger.getLogger(Snapshots.class.getName());
+
+    static final int KEEP = 2;
+    private static final int MAGIC = 0x4456534e;
+    private static final int VERSION = 1;
+    private static final short END = -1;
+    private static final String SUFFIX = ".snap";
+    private static final String TEMP = "next.tmp";
+
+    private final Path dir;
+    private final int partitions;
+
+    /**
+     * Receives the votes of a snapshot.
+     */
+    interface Reader {
+
+        void vote(short data_id, int voter, short candidate, long timestamp);
+    }
+
+    /**
+     * Takes the votes of a snapshot being written.
+     */
+    static class Output {
+
+        private final DataOutputStream out;
+        private long votes = 0;
+
+        private Output(DataOutputStream out) {
+            this.out = out;
+        }
+
+        void vote(short data_id, int voter, short candidate, long timestamp) {
+            try {
+                out.writeShort(data_id);
+                out.writeInt(voter);
+                out.writeShort(candidate);
+                out.writeLong(timestamp);
+                votes++;
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+        }
+    }
+
+    Snapshots(Path dir, int partitions) throws IOException {
+        this.dir = dir;
+        this.partitions = partitions;
+        Files.createDirectories(dir);
+    }
+
+    /**
+     * Writes a snapshot at log position {@code position} of the votes the
+     * source passes on, and returns their number.
+     */
+    long write(long position, Consumer<Output> source) throws IOException {
+        Path temp = dir.resolve(TEMP);
+        Output output;
+        CRC32C crc = new CRC32C();
+        try (OutputStream file = Files.newOutputStream(temp)) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                    new CheckedOutputStream(file, crc), 1 << 16));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(position);
+            out.writeInt(partitions);
+            output = new Output(out);
+            try {
+                source.accept(output);
+            } catch (UncheckedIOException ex) {
+                throw ex.getCause();
+            }
+            out.writeShort(END);
+            out.flush();
+            new DataOutputStream(file).writeInt((int) crc.getValue());
+        }
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+            channel.force(true);
+        }
+        Files.move(temp, dir.resolve(String.format("%020d", position) + SUFFIX),
+                StandardCopyOption.ATOMIC_MOVE);
+        List<Path> snapshots = list();
+        for (Path old : snapshots.subList(0, Math.max(snapshots.size() - KEEP, 0))) {
+            Files.deleteIfExists(old);
+        }
+        return output.votes;
+    }
+
+    /**
+     * The position of the oldest snapshot kept, the log before it is no
+     * longer needed. Zero without snapshots.
+     */
+    long retained() throws IOException {
+        List<Path> snapshots = list();
+        return snapshots.isEmpty() ? 0 : position(snapshots.get(0));
+    }
+
+    /**
+     * Passes the votes of the newest intact snapshot to the reader and
+     * returns its position, or zero if there is none.
+     */
+    long load(Reader reader) throws IOException {
+        List<Path> snapshots = list();
+        Collections.reverse(snapshots);
+        for (Path snapshot : snapshots) {
+            if (!intact(snapshot)) {
+                LOGGER.log(Level.SEVERE, "Damaged snapshot {0}", snapshot.getFileName());
+                continue;
+            }
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                    Files.newInputStream(snapshot), 1 << 16))) {
+                in.skipNBytes(2 * Integer.BYTES);
+                long position = in.readLong();
+                if (in.readInt() != partitions) {
+                    throw new IOException("Snapshot " + snapshot.getFileName()
+                            + " was taken with other partitions");
+                }
+                short data_id;
+                while ((data_id = in.readShort()) != END) {
+                    int voter = in.readInt();
+                    short candidate = in.readShort();
+                    reader.vote(data_id, voter, candidate, in.readLong());
+                }
+                return position;
+            }
+        }
+        return 0;
+    }
+
+    private boolean intact(Path snapshot) throws IOException {
+        long size = Files.size(snapshot);
+        if (size < 3 * Integer.BYTES + Long.BYTES + Short.BYTES + Integer.BYTES) {
+            return false;
+        }
+        CRC32C crc = new CRC32C();
+        try (DataInputStream in = new DataInputStream(Files.newInputStream(snapshot))) {
+            byte[] buffer = new byte[1 << 16];
+            in.readFully(buffer, 0, 2 * Integer.BYTES);
+            ByteBuffer header = ByteBuffer.wrap(buffer);
+            if (header.getInt() != MAGIC || header.getInt() != VERSION) {
+                return false;
+            }
+            crc.update(buffer, 0, 2 * Integer.BYTES);
+            long left = size - 3 * Integer.BYTES;
+            while (left > 0) {
+                int read = (int) Math.min(buffer.length, left);
+                in.readFully(buffer, 0, read);
+                crc.update(buffer, 0, read);
+                left -= read;
+            }
+            return in.readInt() == (int) crc.getValue();
+        } catch (EOFException ex) {
+            return false;
+        }
+    }
+
+    private List<Path> list() throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.filter(file -> file.getFileName().toString().endsWith(SUFFIX))
+                    .sorted()
+                    .collect(Collectors.toCollection(ArrayList::new));
+        }
+    }
+
+    private static long position(Path snapshot) {
+        String name = snapshot.getFileName().toString();
+        return Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+    }
+}
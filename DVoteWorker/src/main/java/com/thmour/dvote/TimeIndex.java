@@ -0,0 +1,310 @@
+/*
+ * Copyright (C) 2016 theofilos
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.thmour.dvote;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * The votes of a fragment ordered by timestamp, so a /resolve range costs
+ * a binary search and the votes in it instead of a scan of the fragment.
+ * <p>
+ * Votes mostly arrive in timestamp order and are appended to a sorted run
+ * of primitive arrays. The few that are older than the end of the run (a
+ * clock behind on another master, a vote from anti-entropy) wait in a
+ * skip list, until there are enough of them to merge into a new run.
+ * Readers take the run and the skip lists of one {@link View} and need no
+ * lock, there is a single writer at a time.
+ * <p>
+ * The merge runs on the given executor, not on the writer: the full skip
+ * list is set aside, new stragglers go to a fresh one, and the merged run
+ * replaces the old one along with the votes appended to it meanwhile. A
+ * vote takes 14 bytes in the run, up to twice that while the arrays have
+ * room to grow, and a straggler a skip list node until the next merge.
+ *
+ * @author theofilos
+ */
+class TimeIndex {
+
+    private static final int MIN_MERGE = 4096;
+    private static final Comparator<Straggler> ORDER = Comparator
+            .comparingLong((Straggler vote) -> vote.timestamp)
+            .thenComparingInt(vote -> vote.voter);
+
+    private final Executor merger;
+    private volatile View view = new View(new Run(16), new ConcurrentSkipListSet<>(ORDER), null);
+    private int stragglers = 0;
+    // moves on every new run from addAll, a background merge of an older one is dropped
+    private int generation = 0;
+
+    TimeIndex(Executor merger) {
+        this.merger = merger;
+    }
+
+    private static final class Run {
+
+        final long[] timestamps;
+        final int[] voters;
+        final short[] candidates;
+        // the votes below size are written before it moves
+        volatile int size;
+
+        Run(int capacity) {
+            timestamps = new long[capacity];
+            voters = new int[capacity];
+            candidates = new short[capacity];
+        }
+
+        Run(Run run, int capacity) {
+            timestamps = Arrays.copyOf(run.timestamps, capacity);
+            voters = Arrays.copyOf(run.voters, capacity);
+            candidates = Arrays.copyOf(run.candidates, capacity);
+            size = run.size;
+        }
+
+        /**
+         * The first index in {@code [0, size)} with a timestamp after
+         * {@code timestamp}.
+         */
+        int upperBound(long timestamp, int size) {
+            int low = 0, high = size;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (timestamps[mid] <= timestamp) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+    }
+
+    private static final class Straggler {
+
+        final long timestamp;
+        final int voter;
+        final short candidate;
+
+        Straggler(long timestamp, int voter, short candidate) {
+            this.timestamp = timestamp;
+            this.voter = voter;
+            this.candidate = candidate;
+        }
+    }
+
+    private static final class View {
+
+        final Run run;
+        final ConcurrentSkipListSet<Straggler> stragglers;
+        // the stragglers being merged into a new run, or null
+        final ConcurrentSkipListSet<Straggler> merging;
+
+        View(Run run, ConcurrentSkipListSet<Straggler> stragglers,
+                ConcurrentSkipListSet<Straggler> merging) {
+            this.run = run;
+            this.stragglers = stragglers;
+            this.merging = merging;
+        }
+    }
+
+    synchronized void add(long timestamp, int voter, short candidate) {
+        View current = view;
+        Run run = current.run;
+        int size = run.size;
+        if (size > 0 && timestamp < run.timestamps[size - 1]) {
+            current.stragglers.add(new Straggler(timestamp, voter, candidate));
+            stragglers++;
+            startMerge();
+            return;
+        }
+        if (size == run.timestamps.length) {
+            run = new Run(run, size * 2);
+            view = new View(run, current.stragglers, current.merging);
+        }
+        run.timestamps[size] = timestamp;
+        run.voters[size] = voter;
+        run.candidates[size] = candidate;
+        run.size = size + 1;
+    }
+
+    /**
+     * Adds votes in any order, sorting them with the indexed ones into a
+     * new run. Meant for loading, where they come in bulk.
+     */
+    synchronized void addAll(long[] timestamps, int[] voters, short[] candidates, int count) {
+        View current = view;
+        Run merged = merge(current.run, current.run.size, current.merging, current.stragglers,
+                timestamps, voters, candidates, count);
+        generation++;
+        view = new View(merged, new ConcurrentSkipListSet<>(ORDER), null);
+        stragglers = 0;
+    }
+
+    /**
+     * Passes the votes with {@code start < timestamp < end} to the visitor,
+     * the bounds are left out as /resolve always did. Votes indexed
+     * meanwhile may or may not be seen.
+     */
+    void range(long start, long end, VoteTable.Visitor visitor) {
+        View current = view;
+        Run run = current.run;
+        int size = run.size;
+        for (int i = run.upperBound(start, size); i < size && run.timestamps[i] < end; i++) {
+            visitor.vote(run.voters[i], run.candidates[i], run.timestamps[i]);
+        }
+        if (start >= end) {
+            return;
+        }
+        range(current.merging, start, end, visitor);
+        range(current.stragglers, start, end, visitor);
+    }
+
+    private static void range(ConcurrentSkipListSet<Straggler> stragglers, long start, long end,
+            VoteTable.Visitor visitor) {
+        if (stragglers == null || stragglers.isEmpty()) {
+            return;
+        }
+        for (Straggler vote : stragglers.subSet(new Straggler(start, Integer.MAX_VALUE, (short) 0),
+                false, new Straggler(end, Integer.MIN_VALUE, (short) 0), false)) {
+            visitor.vote(vote.voter, vote.candidate, vote.timestamp);
+        }
+    }
+
+    /**
+     * Sets the stragglers aside for a background merge once there are
+     * enough of them and no merge is running.
+     */
+    private void startMerge() {
+        View current = view;
+        if (current.merging != null || stragglers <= Math.max(MIN_MERGE, current.run.size / 8)) {
+            return;
+        }
+        Run run = current.run;
+        int size = run.size;
+        ConcurrentSkipListSet<Straggler> merging = current.stragglers;
+        view = new View(run, new ConcurrentSkipListSet<>(ORDER), merging);
+        stragglers = 0;
+        int started = generation;
+        Runnable task = () -> finishMerge(started, size,
+                merge(run, size, merging, null, null, null, null, 0));
+        try {
+            merger.execute(task);
+        } catch (RejectedExecutionException ex) {
+            // shutting down
+            task.run();
+        }
+    }
+
+    /**
+     * Replaces the run with the merged one plus the votes appended since
+     * the merge started, which are all later than the merged ones.
+     */
+    private synchronized void finishMerge(int started, int size, Run merged) {
+        if (generation != started) {
+            return;
+        }
+        View current = view;
+        Run run = current.run;
+        int end = run.size;
+        int length = merged.size + end - size;
+        if (length > merged.timestamps.length) {
+            merged = new Run(merged, length + length / 4);
+        }
+        System.arraycopy(run.timestamps, size, merged.timestamps, merged.size, end - size);
+        System.arraycopy(run.voters, size, merged.voters, merged.size, end - size);
+        System.arraycopy(run.candidates, size, merged.candidates, merged.size, end - size);
+        merged.size = length;
+        view = new View(merged, current.stragglers, null);
+        startMerge();
+    }
+
+    /**
+     * A single run of the first {@code size} votes of a run, the given
+     * stragglers and the given votes.
+     */
+    private static Run merge(Run run, int size, ConcurrentSkipListSet<Straggler> merging,
+            ConcurrentSkipListSet<Straggler> stragglers, long[] timestamps, int[] voters,
+            short[] candidates, int count) {
+        int total = size + (merging == null ? 0 : merging.size())
+                + (stragglers == null ? 0 : stragglers.size()) + count;
+        long[] all_timestamps = Arrays.copyOf(run.timestamps, total);
+        int[] all_voters = Arrays.copyOf(run.voters, total);
+        short[] all_candidates = Arrays.copyOf(run.candidates, total);
+        int at = size;
+        for (int i = 0; i < 2; i++) {
+            ConcurrentSkipListSet<Straggler> set = i == 0 ? merging : stragglers;
+            if (set == null) {
+                continue;
+            }
+            for (Straggler vote : set) {
+                all_timestamps[at] = vote.timestamp;
+                all_voters[at] = vote.voter;
+                all_candidates[at++] = vote.candidate;
+            }
+        }
+        if (count > 0) {
+            System.arraycopy(timestamps, 0, all_timestamps, at, count);
+            System.arraycopy(voters, 0, all_voters, at, count);
+            System.arraycopy(candidates, 0, all_candidates, at, count);
+            at += count;
+        }
+
+        int[] order = sortedOrder(all_timestamps, at);
+        Run merged = new Run(Math.max(16, at + at / 4));
+        for (int i = 0; i < at; i++) {
+            merged.timestamps[i] = all_timestamps[order[i]];
+            merged.voters[i] = all_voters[order[i]];
+            merged.candidates[i] = all_candidates[order[i]];
+        }
+        merged.size = at;
+        return merged;
+    }
+
+    /**
+     * The indexes of the first {@code count} keys in key order, by a
+     * bottom-up merge sort that skips the runs already in order.
+     */
+    private static int[] sortedOrder(long[] keys, int count) {
+        int[] order = new int[count];
+        for (int i = 0; i < count; i++) {
+            order[i] = i;
+        }
+        int[] scratch = new int[count];
+        for (int width = 1; width < count; width *= 2) {
+            for (int low = 0; low < count - width; low += 2 * width) {
+                int mid = low + width, high = Math.min(low + 2 * width, count);
+                if (keys[order[mid - 1]] <= keys[order[mid]]) {
+                    continue;
+                }
+                int left = low, right = mid;
+                for (int k = low; k < high; k++) {
+                    if (right >= high || (left < mid && keys[order[left]] <= keys[order[right]])) {
+                        scratch[k] = order[left++];
+                    } else {
+                        scratch[k] = order[right++];
+                    }
+                }
+                System.arraycopy(scratch, low, order, low, high - low);
+            }
+        }
+        return order;
+    }
+}
@@ -0,0 +1,344 @@
+/*
+ * Copyright (C) 2016 theofilos
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.thmour.dvote;
+
+import java.util.Arrays;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * The votes of a fragment, voter to candidate and timestamp, in open
+ * addressing tables of primitive arrays instead of boxed map entries. A
+ * vote takes 14 bytes of array slots, about 30 with the free slots, where
+ * a {@code ConcurrentHashMap} entry took over 80 bytes in four objects.
+ * <p>
+ * The voters are spread over stripes, each a linear probing table behind
+ * its own {@link StampedLock}. Lookups are optimistic reads that retry
+ * under the read lock if a write got in, inserts take the write lock of
+ * one stripe. A resize builds the new arrays aside and publishes them at
+ * once, and a probe stops after a full turn, so a torn optimistic read
+ * only fails its validation. A slot is free while its candidate is negative, so the
+ * candidates stored must not be.
+ *
+ * @author theofilos
+ */
+class VoteTable {
+
+    private static final int STRIPE_BITS = 4;
+    private static final int STRIPES = 1 << STRIPE_BITS;
+    private static final int MIN_CAPACITY = 16;
+    private static final short FREE = -1;
+
+    private final Stripe[] stripes = new Stripe[STRIPES];
+
+    /**
+     * Receives the votes of the table.
+     */
+    interface Visitor {
+
+        void vote(int voter, short candidate, long timestamp);
+    }
+
+    /**
+     * The arrays of a stripe, replaced as a whole on a resize so that an
+     * optimistic reader never sees them half built.
+     */
+    private static class Slots {
+
+        final int[] voters;
+        final short[] candidates;
+        final long[] timestamps;
+        final int mask;
+        final int shift;
+
+        Slots(int capacity) {
+            voters = new int[capacity];
+            candidates = new short[capacity];
+            Arrays.fill(candidates, FREE);
+            timestamps = new long[capacity];
+            mask = capacity - 1;
+            shift = Integer.SIZE - Integer.numberOfTrailingZeros(capacity);
+        }
+
+        /**
+         * The home slot of a hash, from the bits after the stripe bits, so
+         * the votes lie in the order of their hashes but for probing.
+         */
+        int home(int hash) {
+            return (hash << STRIPE_BITS) >>> shift;
+        }
+
+        /**
+         * The slot of the voter, or the free slot it would take. A read
+         * torn by a concurrent insert may find neither, it returns -1 then.
+         */
+        int slot(int hash, int voter) {
+            int slot = home(hash);
+            for (int probes = 0; probes <= mask; probes++) {
+                if (candidates[slot] == FREE || voters[slot] == voter) {
+                    return slot;
+                }
+                slot = (slot + 1) & mask;
+            }
+            return -1;
+        }
+    }
+
+    private static class Stripe {
+
+        final StampedLock lock = new StampedLock();
+        volatile Slots slots;
+        volatile int size = 0;
+
+        Stripe(int capacity) {
+            slots = new Slots(capacity);
+        }
+
+        boolean contains(int hash, int voter) {
+            long stamp = lock.tryOptimisticRead();
+            if (stamp != 0) {
+                Slots s = slots;
+                int slot = s.slot(hash, voter);
+                boolean found = slot >= 0 && s.candidates[slot] != FREE;
+                if (lock.validate(stamp)) {
+                    return found;
+                }
+            }
+            stamp = lock.readLock();
+            try {
+                Slots s = slots;
+                return s.candidates[s.slot(hash, voter)] != FREE;
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+
+        boolean putIfAbsent(int hash, int voter, short candidate, long timestamp) {
+            long stamp = lock.writeLock();
+            try {
+                Slots s = slots;
+                int slot = s.slot(hash, voter);
+                if (s.candidates[slot] != FREE) {
+                    return false;
+                }
+                s.voters[slot] = voter;
+                s.timestamps[slot] = timestamp;
+                s.candidates[slot] = candidate;
+                size++;
+                if (size * 4L > s.voters.length * 3L) {
+                    resize(s.voters.length * 2);
+                }
+                return true;
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+        }
+
+        /**
+         * Grows the table to hold {@code size} votes, under the write lock.
+         */
+        void ensureCapacity(int size) {
+            long stamp = lock.writeLock();
+            try {
+                int capacity = capacityFor(size);
+                if (capacity > slots.voters.length) {
+                    resize(capacity);
+                }
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+        }
+
+        /**
+         * Rehashes into new arrays and only then publishes them.
+         */
+        private void resize(int capacity) {
+            Slots old = slots;
+            Slots grown = new Slots(capacity);
+            for (int i = 0; i < old.voters.length; i++) {
+                if (old.candidates[i] != FREE) {
+                    int slot = grown.slot(hash(old.voters[i]), old.voters[i]);
+                    grown.voters[slot] = old.voters[i];
+                    grown.candidates[slot] = old.candidates[i];
+                    grown.timestamps[slot] = old.timestamps[i];
+                }
+            }
+            slots = grown;
+        }
+
+        void forEach(Visitor visitor) {
+            int[] v;
+            short[] c;
+            long[] t;
+            // copied under the read lock, so the visitor holds up no insert
+            long stamp = lock.readLock();
+            try {
+                Slots s = slots;
+                v = s.voters.clone();
+                c = s.candidates.clone();
+                t = s.timestamps.clone();
+            } finally {
+                lock.unlockRead(stamp);
+            }
+            for (int i = 0; i < v.length; i++) {
+                if (c[i] != FREE) {
+                    visitor.vote(v[i], c[i], t[i]);
+                }
+            }
+        }
+
+        /**
+         * Visits the votes whose hashes start with {@code prefix}. They sit
+         * from the home of the prefix on, up to the end of its home range
+         * and the cluster that runs past it, since votes are never removed.
+         */
+        void forEach(int prefix, int bits, Visitor visitor) {
+            int count = 0;
+            int[] v = new int[16];
+            short[] c = new short[16];
+            long[] t = new long[16];
+            long stamp = lock.readLock();
+            try {
+                Slots s = slots;
+                int start = s.home(prefix << (Integer.SIZE - bits));
+                int width = Integer.SIZE - s.shift - (bits - STRIPE_BITS);
+                int end = start + (width > 0 ? 1 << width : 1);
+                for (int i = start; i - start <= s.mask; i++) {
+                    int slot = i & s.mask;
+                    if (s.candidates[slot] == FREE) {
+                        if (i >= end) {
+                            break;
+                        }
+                        continue;
+                    }
+                    if (hash(s.voters[slot]) >>> (Integer.SIZE - bits) != prefix) {
+                        continue;
+                    }
+                    if (count == v.length) {
+                        v = Arrays.copyOf(v, count * 2);
+                        c = Arrays.copyOf(c, count * 2);
+                        t = Arrays.copyOf(t, count * 2);
+                    }
+                    v[count] = s.voters[slot];
+                    c[count] = s.candidates[slot];
+                    t[count++] = s.timestamps[slot];
+                }
+            } finally {
+                lock.unlockRead(stamp);
+            }
+            for (int i = 0; i < count; i++) {
+                visitor.vote(v[i], c[i], t[i]);
+            }
+        }
+    }
+
+    VoteTable() {
+        for (int s = 0; s < STRIPES; s++) {
+            stripes[s] = new Stripe(MIN_CAPACITY);
+        }
+    }
+
+    boolean contains(int voter) {
+        int hash = hash(voter);
+        return stripe(hash).contains(hash, voter);
+    }
+
+    /**
+     * Stores a vote unless the voter has one, and returns whether it did.
+     */
+    boolean putIfAbsent(int voter, short candidate, long timestamp) {
+        if (candidate < 0) {
+            throw new IllegalArgumentException("Negative candidate " + candidate);
+        }
+        int hash = hash(voter);
+        return stripe(hash).putIfAbsent(hash, voter, candidate, timestamp);
+    }
+
+    int size() {
+        int size = 0;
+        for (Stripe stripe : stripes) {
+            size += stripe.size;
+        }
+        return size;
+    }
+
+    boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /**
+     * Grows the table ahead of {@code votes} more votes, spread evenly.
+     */
+    void ensureCapacity(int votes) {
+        for (Stripe stripe : stripes) {
+            stripe.ensureCapacity(stripe.size + votes / STRIPES + 1);
+        }
+    }
+
+    /**
+     * Passes every vote to the visitor, a stripe at a time. Votes stored
+     * meanwhile may or may not be seen.
+     */
+    void forEach(Visitor visitor) {
+        for (Stripe stripe : stripes) {
+            stripe.forEach(visitor);
+        }
+    }
+
+    /**
+     * Passes the votes whose voter hashes, see {@link #hash(int)}, start
+     * with the {@code bits} bits of {@code prefix}. Only the slots of that
+     * hash range are read, not the whole table.
+     *
+     * @param bits at least the stripe bits
+     */
+    void forEach(int prefix, int bits, Visitor visitor) {
+        if (bits < STRIPE_BITS || bits > Integer.SIZE - 2) {
+            throw new IllegalArgumentException("Prefix of " + bits + " bits");
+        }
+        stripes[prefix >>> (bits - STRIPE_BITS)].forEach(prefix, bits, visitor);
+    }
+
+    private Stripe stripe(int hash) {
+        return stripes[hash >>> (Integer.SIZE - STRIPE_BITS)];
+    }
+
+    /**
+     * The smallest power of two that holds {@code size} votes at most three
+     * quarters full.
+     */
+    private static int capacityFor(int size) {
+        int capacity = MIN_CAPACITY;
+        while (capacity < 1 << 30 && capacity * 3L < size * 4L) {
+            capacity <<= 1;
+        }
+        return capacity;
+    }
+
+    /**
+     * The murmur3 finalizer, the high bits pick the stripe and the next
+     * ones the slot.
+     */
+    static int hash(int voter) {
+        int h = voter;
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+}